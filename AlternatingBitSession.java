@@ -0,0 +1,177 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+
+/**
+ * Receiver side of a single Alternating-Bit-Protocol transfer, driven by its own {@link FSMReceiver}.
+ * <p>
+ * The transfer opens with a SYN in place of the first data packet (alternating bit 0), see {@link SessionSetup}.
+ * Its SYN-ACK is a data packet with the same bit and flag that tells whether the file is accepted; repeated SYNs get
+ * the same answer again. File data starts with alternating bit 1. SYN and SYN-ACK carry a CRC32, data packets and ACKs
+ * the checksum negotiated in them.
+ * <p>
+ * A repeated data packet gets the ACK of its bit again, the first one may have been lost. A corrupt packet is answered
+ * with a NAK for the expected bit, so the sender doesn't have to wait for its timeout.
+ */
+public class AlternatingBitSession implements ReceiverSession {
+
+    private final DatagramBatch out;
+    private final FSMReceiver fileReceiver = new FSMReceiver();
+    private final PacketCodec codec = new PacketCodec(PacketCodec.ALTERNATING_BIT);
+    private final PacketCodec control = new PacketCodec(PacketCodec.ALTERNATING_BIT);
+    private final ByteBuffer ack = ByteBuffer.allocate(codec.ackSize);
+    private final int maxChunkSize;
+
+    private StreamingFileWriter output;
+    private SessionSetup setup;
+    private byte status;
+    private final ByteBuffer answer;
+    private boolean notLast = true;
+    private int expectedAltBit = 0;
+    private long start = 0;
+
+    private final TransferMetrics metrics;
+
+    /**
+     * @param out          Datagrams towards the sender.
+     * @param maxChunkSize Largest chunk accepted, the payload of the largest datagram the server receives.
+     * @param metrics      Counters of the session, closed by the server.
+     */
+    AlternatingBitSession(DatagramBatch out, int maxChunkSize, TransferMetrics metrics) {
+        this.out = out;
+        this.metrics = metrics;
+        this.maxChunkSize = maxChunkSize;
+        this.answer = ByteBuffer.allocate(codec.headerSize + SessionSetup.ANSWER_SIZE);
+    }
+
+    @Override
+    public void handle(ByteBuffer datagram) throws IOException {
+        if (start == 0) {
+            start = System.nanoTime();
+        }
+
+        if (datagram.limit() == 0) {
+            metrics.lost.increment();
+        } else if ((isSyn(datagram) ? control : codec).wrap(datagram).isCorrupt()) {
+            metrics.corrupt.increment();
+            fileReceiver.processMsg(FSMReceiver.Msg.IS_CORRUPT);
+            if (output != null && notLast) {
+                acknowledge(PacketCodec.NAK | expectedAltBit);
+            }
+        } else if (isSyn(datagram)) {
+            answerSyn(control.payload());
+        } else if (setup == null || !notLast || codec.sequence() != expectedAltBit) {
+            // a packet with the wrong alternating bit is a repetition, its ACK got lost or is still on the way
+            metrics.duplicates.increment();
+            fileReceiver.processMsg(FSMReceiver.Msg.WRONG_ALTERNATING);
+            if (output != null) {
+                acknowledge(expectedAltBit ^ 1);
+            }
+        } else {
+            notLast = codec.flag() != 2;
+            int alternatingBit = codec.sequence();
+            ByteBuffer payload = codec.payload();
+            metrics.bytes.add(payload.remaining());
+            output.write(payload);
+            metrics.packetsReceived.increment();
+            expectedAltBit ^= 1;
+            acknowledge(alternatingBit);
+            fileReceiver.processMsg(FSMReceiver.Msg.ALL_FINE);
+
+            if (!notLast) {
+                finish();
+            }
+        }
+    }
+
+    /**
+     * @param sequence Alternating bit to acknowledge, with {@link PacketCodec#NAK} set for a NAK.
+     */
+    private void acknowledge(int sequence) throws IOException {
+        codec.encodeACK(ack, out.localPort(), out.remotePort(), 0, sequence);
+        out.add(ack);
+        metrics.acksSent.increment();
+    }
+
+    private boolean isSyn(ByteBuffer datagram) {
+        return datagram.limit() >= codec.headerSize && datagram.get(codec.flagIndex - 1) == 0
+                && (datagram.get(codec.flagIndex) & SessionSetup.SYN_FLAG) != 0;
+    }
+
+    /**
+     * Takes the first SYN as packet with alternating bit 0 and answers it and every repetition.
+     */
+    private void answerSyn(ByteBuffer syn) throws IOException {
+        if (setup == null) {
+            syn.getInt();
+            SessionSetup requested = SessionSetup.readSyn(syn);
+            if (requested == null) {
+                return;
+            }
+            setup = requested;
+            status = setup.check();
+            if (status == SessionSetup.ACCEPTED) {
+                status = SessionSetup.checkSpace(Paths.get("src"), setup.fileSize);
+            }
+            codec.use(setup.negotiateChecksum());
+            if (status == SessionSetup.ACCEPTED) {
+                System.out.println(setup.fileName);
+                output = new StreamingFileWriter(setup.fileName, "udp");
+                output.preallocate(setup.fileSize);
+                metrics.packetsReceived.increment();
+                expectedAltBit = 1;
+                fileReceiver.processMsg(FSMReceiver.Msg.ALL_FINE);
+            } else {
+                System.out.println("Transfer of " + setup.fileName + " rejected: " + SessionSetup.statusText(status));
+                notLast = false;
+            }
+        } else {
+            metrics.duplicates.increment();
+            fileReceiver.processMsg(FSMReceiver.Msg.WRONG_ALTERNATING);
+        }
+
+        answer.clear().position(control.headerSize);
+        // window 1 and no missing ranges to report, ABP transfers aren't resumed
+        int chunkSize = Math.min(setup.chunkSize, maxChunkSize);
+        answer.put(status).putInt(1).putShort((short) chunkSize).put(codec.algorithm().id).putInt(0).putInt(0).putShort((short) 0);
+        control.encode(answer, out.localPort(), out.remotePort(), 0, SessionSetup.SYN_FLAG, SessionSetup.ANSWER_SIZE);
+        out.add(answer);
+    }
+
+    private void finish() throws IOException {
+        long end = System.nanoTime();
+        output.finish();
+
+        System.out.println("Socket closed, total bytes written: " + output.size());
+        FileReceiver.printStats((int) metrics.packetsReceived.get(), FileReceiver.calculateThroughput(start, end, output.size()),
+                (int) metrics.lost.get(), "udp");
+        System.out.println("Corrupt Packets: " + metrics.corrupt.get());
+        System.out.println("Wrong Alt Bit: " + metrics.duplicates.get());
+        if (metrics.sendDropped.get() > 0) {
+            System.out.println("Dropped by the send buffer: " + metrics.sendDropped.get());
+        }
+    }
+
+    @Override
+    public boolean isFinished() {
+        return !notLast;
+    }
+
+    @Override
+    public void abort() throws IOException {
+        if (output != null) {
+            output.abort();
+        }
+    }
+}
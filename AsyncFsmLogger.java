@@ -0,0 +1,167 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs state machine transitions without blocking the thread that processes packets. Events are stored in a
+ * preallocated ring buffer that any number of threads write to; a single daemon thread formats and prints them.
+ * If the printing thread falls behind and the buffer is full, new events are dropped and counted instead of
+ * making the sender or receiver wait for the console.
+ */
+public class AsyncFsmLogger implements FsmListener, Closeable {
+
+    private static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final long PARK_NANOS = 1_000_000L;
+
+    private static AsyncFsmLogger shared;
+
+    private final int mask;
+    private final String[] machines;
+    private final Enum<?>[] froms;
+    private final Enum<?>[] inputs;
+    private final Enum<?>[] tos;
+    private final String[] actions;
+    private final long[] times;
+    // sequence of the event a slot is ready for: slot i may be written for sequence s when it holds s,
+    // and read when it holds s + 1
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final PrintStream out;
+    private final Thread printer;
+    private volatile boolean closed = false;
+    private long tail = 0;
+
+    /**
+     * @param capacity Number of events that can wait for printing, rounded up to a power of two.
+     */
+    public AsyncFsmLogger(int capacity, PrintStream out) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.machines = new String[size];
+        this.froms = new Enum<?>[size];
+        this.inputs = new Enum<?>[size];
+        this.tos = new Enum<?>[size];
+        this.actions = new String[size];
+        this.times = new long[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, i);
+        }
+        this.out = out;
+        this.printer = new Thread(this::print, "fsm-logger");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    /**
+     * @return Logger to standard output shared by all state machines of this JVM, flushed at shutdown.
+     */
+    public static synchronized AsyncFsmLogger shared() {
+        if (shared == null) {
+            AsyncFsmLogger logger = new AsyncFsmLogger(DEFAULT_CAPACITY, System.out);
+            Runtime.getRuntime().addShutdownHook(new Thread(logger::close));
+            shared = logger;
+        }
+        return shared;
+    }
+
+    @Override
+    public void onTransition(String machine, Enum<?> from, Enum<?> input, Enum<?> to, String action) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (published.get((int) sequence & mask) != sequence) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        machines[slot] = machine;
+        froms[slot] = from;
+        inputs[slot] = input;
+        tos[slot] = to;
+        actions[slot] = action;
+        times[slot] = System.nanoTime();
+        published.set(slot, sequence + 1);
+    }
+
+    /**
+     * @return Number of events that were dropped because the buffer was full.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Prints all pending events and stops the printing thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(printer);
+        try {
+            printer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void print() {
+        StringBuilder line = new StringBuilder(128);
+        while (true) {
+            boolean wasClosed = closed;
+            if (!drain(line) && wasClosed) {
+                break;
+            }
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        long lost = dropped.get();
+        if (lost > 0) {
+            out.println("INFO " + lost + " FSM events dropped");
+        }
+        out.flush();
+    }
+
+    /**
+     * @return true if at least one event was printed.
+     */
+    private boolean drain(StringBuilder line) {
+        boolean printed = false;
+        while (true) {
+            int slot = (int) tail & mask;
+            if (published.get(slot) != tail + 1) {
+                return printed;
+            }
+            line.setLength(0);
+            line.append("INFO ").append(times[slot]).append(' ').append(machines[slot]).append(": ")
+                    .append(froms[slot]).append(" --").append(inputs[slot]).append("--> ").append(tos[slot]);
+            if (actions[slot] != null) {
+                line.append(" (").append(actions[slot]).append(')');
+            }
+            out.println(line);
+            machines[slot] = null;
+            froms[slot] = null;
+            inputs[slot] = null;
+            tos[slot] = null;
+            actions[slot] = null;
+            published.set(slot, tail + mask + 1);
+            tail++;
+            printed = true;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Delta transfer of a file the receiver already has an older copy of, in the way of rsync. The receiver splits its
+ * copy into blocks and sends a weak {@link RollingChecksum} and a strong checksum (the first 8 bytes of the MD5) of
+ * every block. The sender slides a window of one block over its file and looks the weak checksum up at every offset;
+ * a hit confirmed by the strong checksum becomes a reference to that block, the window jumps behind it. Blocks found
+ * at any offset, not only at their old one, so inserting or deleting some bytes doesn't spoil the rest of the file.
+ * <p>
+ * The receiver copies the referenced blocks from its old copy into the part file and records every chunk they cover
+ * completely as received. The SYN that follows gets the remaining chunks as missing ranges, and the data transfer
+ * carries only those, like the rest of a resumed transfer.
+ * <p>
+ * Both exchanges are control packets with {@link #FLAG} set, repeated by the sender until answered and paged like the
+ * missing ranges of the SYN-ACK:
+ * <ul>
+ * <li>{@link #SIGNATURE_SEQUENCE}: the sender asks with the payload of a SYN whose first field is the index of the
+ * first block wanted. The answer: status (1), block size (4), length of the old copy (8), index of the first block (4),
+ * total number of blocks (4), blocks in this page (2) and per block the weak (4) and the strong checksum (8). Without
+ * an old copy there are 0 blocks.</li>
+ * <li>{@link #COPY_SEQUENCE}: the sender sends index of the first reference (4), total number of references (4),
+ * references in this page (2) and the references as offset in the new file (8), first block (4) and number of
+ * consecutive blocks (4). The answer is the number of references the receiver has applied (4).</li>
+ * </ul>
+ * The sender asks for it with the system property "delta=true", for whole file Selective Repeat transfers.
+ */
+public class BlockSignatures {
+
+    static final byte FLAG = (byte) 128;
+    static final int SIGNATURE_SEQUENCE = -4;
+    static final int COPY_SEQUENCE = -5;
+    static final int SIGNATURE_HEADER = 1 + 4 + 8 + 4 + 4 + 2;
+    static final int SIGNATURE_SIZE = 4 + 8;
+    static final int COPY_HEADER = 4 + 4 + 2;
+    static final int COPY_SIZE = 8 + 4 + 4;
+    static final int MIN_BLOCK = 512;
+    static final int MAX_BLOCK = 1 << 16;
+
+    private final int blockSize;
+    private final long basisLength;
+    private final int[] weak;
+    private final long[] strong;
+    // hash table over the weak checksums, chained through next
+    private final int[] heads;
+    private final int[] next;
+
+    /**
+     * Sender side, filled page by page with {@link #read}.
+     *
+     * @param blocks Total number of blocks of the receiver's copy.
+     */
+    BlockSignatures(int blockSize, long basisLength, int blocks) {
+        this.blockSize = blockSize;
+        this.basisLength = basisLength;
+        this.weak = new int[blocks];
+        this.strong = new long[blocks];
+        this.heads = new int[Integer.highestOneBit(Math.max(1, blocks)) * 2];
+        this.next = new int[blocks];
+        Arrays.fill(heads, -1);
+    }
+
+    /**
+     * Block size for an old copy of the given length: about its square root as in rsync, which balances the size of
+     * the signatures against the bytes resent around every change.
+     */
+    static int blockSize(long basisLength) {
+        int size = (int) Math.min(MAX_BLOCK, Math.max(MIN_BLOCK, Math.sqrt(basisLength)));
+        return (size + 63) & -64;
+    }
+
+    /**
+     * @return Number of whole blocks of the old copy, a shorter rest at its end gets no signature.
+     */
+    static int blocks(long basisLength, int blockSize) {
+        return (int) Math.min(Integer.MAX_VALUE, basisLength / blockSize);
+    }
+
+    /**
+     * Receiver side: reads {@code count} blocks from {@code first} on from the old copy and puts their signatures at
+     * the position of the page.
+     */
+    static void write(FileChannel basis, int blockSize, int first, int count, ByteBuffer page) throws IOException {
+        byte[] block = new byte[blockSize];
+        MessageDigest md5 = md5();
+        RollingChecksum rolling = new RollingChecksum();
+        for (int i = first; i < first + count; i++) {
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            long position = (long) i * blockSize;
+            while (buffer.hasRemaining()) {
+                int read = basis.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("Old copy shorter than announced");
+                }
+            }
+            rolling.reset(block, 0, blockSize);
+            page.putInt(rolling.value()).putLong(strong(md5, block, 0, blockSize));
+        }
+    }
+
+    /**
+     * Takes the signatures of one page.
+     */
+    void read(ByteBuffer page, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            weak[i] = page.getInt();
+            strong[i] = page.getLong();
+            int bucket = bucket(weak[i]);
+            next[i] = heads[bucket];
+            heads[bucket] = i;
+        }
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    int blocks() {
+        return weak.length;
+    }
+
+    long basisLength() {
+        return basisLength;
+    }
+
+    /**
+     * Scans the file for blocks of the receiver's copy.
+     *
+     * @return The references to the blocks found, in the order of the file.
+     */
+    Copies match(TransferSource file) throws IOException {
+        Copies copies = new Copies(blockSize);
+        long size = file.size();
+        if (weak.length == 0 || size < blockSize) {
+            return copies;
+        }
+        MessageDigest md5 = md5();
+        RollingChecksum rolling = new RollingChecksum();
+        // data[0, filled) holds the file from dataStart on
+        byte[] data = new byte[Math.max(4 * blockSize, 1 << 20)];
+        long dataStart = 0;
+        int filled = 0;
+        long position = 0;
+        boolean fresh = true;
+        // the block after the last one found, most likely to follow
+        int expected = -1;
+        while (position + blockSize <= size) {
+            int offset = (int) (position - dataStart);
+            if (offset + blockSize >= filled && dataStart + filled < size) {
+                System.arraycopy(data, offset, data, 0, filled - offset);
+                dataStart = position;
+                filled -= offset;
+                offset = 0;
+                int length = (int) Math.min(data.length - filled, size - dataStart - filled);
+                file.slice(dataStart + filled, length).get(data, filled, length);
+                filled += length;
+            }
+            if (fresh) {
+                rolling.reset(data, offset, blockSize);
+                fresh = false;
+            }
+            int block = find(rolling.value(), data, offset, expected, md5);
+            if (block >= 0) {
+                copies.add(position, block);
+                position += blockSize;
+                expected = block + 1;
+                fresh = true;
+            } else if (position + blockSize < size) {
+                rolling.roll(data[offset], data[offset + blockSize]);
+                position++;
+            } else {
+                break;
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * @return The block with the given weak checksum and the strong checksum of the window, -1 if there is none.
+     */
+    private int find(int weakSum, byte[] data, int offset, int expected, MessageDigest md5) {
+        long strongSum = 0;
+        boolean computed = false;
+        if (expected >= 0 && expected < weak.length && weak[expected] == weakSum) {
+            strongSum = strong(md5, data, offset, blockSize);
+            computed = true;
+            if (strong[expected] == strongSum) {
+                return expected;
+            }
+        }
+        for (int i = heads[bucket(weakSum)]; i >= 0; i = next[i]) {
+            if (weak[i] != weakSum) {
+                continue;
+            }
+            if (!computed) {
+                strongSum = strong(md5, data, offset, blockSize);
+                computed = true;
+            }
+            if (strong[i] == strongSum) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int bucket(int weakSum) {
+        return ((weakSum * 0x9E3779B1) >>> 16) & (heads.length - 1);
+    }
+
+    private static long strong(MessageDigest md5, byte[] data, int offset, int length) {
+        md5.update(data, offset, length);
+        return ByteBuffer.wrap(md5.digest()).getLong();
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JRE has MD5", e);
+        }
+    }
+
+    /**
+     * References to blocks of the receiver's copy, consecutive blocks at consecutive offsets merged into one.
+     */
+    static final class Copies {
+        private final int blockSize;
+        private long[] offsets = new long[16];
+        private int[] firstBlocks = new int[16];
+        private int[] blockCounts = new int[16];
+        private int size = 0;
+
+        Copies(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        void add(long offset, int block) {
+            if (size > 0 && offsets[size - 1] + (long) blockCounts[size - 1] * blockSize == offset
+                    && firstBlocks[size - 1] + blockCounts[size - 1] == block) {
+                blockCounts[size - 1]++;
+                return;
+            }
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * size);
+                firstBlocks = Arrays.copyOf(firstBlocks, 2 * size);
+                blockCounts = Arrays.copyOf(blockCounts, 2 * size);
+            }
+            offsets[size] = offset;
+            firstBlocks[size] = block;
+            blockCounts[size] = 1;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return Bytes of the file the references cover.
+         */
+        long bytes() {
+            long blocks = 0;
+            for (int i = 0; i < size; i++) {
+                blocks += blockCounts[i];
+            }
+            return blocks * blockSize;
+        }
+
+        /**
+         * Puts the page of references from {@code first} on that fits into the page, see {@link BlockSignatures}.
+         *
+         * @return Number of references in the page.
+         */
+        int write(ByteBuffer page, int first) {
+            int count = Math.min(size - first, (page.remaining() - COPY_HEADER) / COPY_SIZE);
+            page.putInt(first).putInt(size).putShort((short) count);
+            for (int i = first; i < first + count; i++) {
+                page.putLong(offsets[i]).putInt(firstBlocks[i]).putInt(blockCounts[i]);
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers of one size, allocated on demand up to a fixed number and reused afterwards. Channels read into and
+ * write from direct buffers without the extra copy through a temporary native buffer that heap buffers need, and
+ * reusing them keeps the garbage collector away from the packet path. Safe for use by several threads.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final BlockingQueue<ByteBuffer> free;
+
+    /**
+     * @param bufferSize Capacity of every buffer.
+     * @param capacity   Number of buffers that may be taken at the same time.
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = Math.max(1, capacity);
+        this.free = new ArrayBlockingQueue<>(this.capacity);
+    }
+
+    /**
+     * @param budget Memory all buffers together may take, in bytes.
+     */
+    public static BufferPool ofBytes(int bufferSize, long budget) {
+        return new BufferPool(bufferSize, (int) Math.min(Integer.MAX_VALUE, budget / bufferSize));
+    }
+
+    /**
+     * @return A cleared buffer, null if all buffers are taken.
+     */
+    public ByteBuffer take() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            if (allocated.getAndUpdate(n -> n < capacity ? n + 1 : n) >= capacity) {
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Returns a buffer taken from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UDP proxy that puts an {@link UnreliableChannel} between any sender and receiver, in both directions. Datagrams
+ * arriving at the proxy port are forwarded to the target through one channel, the replies (ACKs) travel back through
+ * another one. Every client gets its own socket towards the target, so the receiver still tells clients apart.
+ * A client that hasn't sent or received anything for "proxy.idle" seconds (system property, default 60) gets its
+ * socket closed, a later datagram from it opens a new one.
+ * <p>
+ * Example with a receiver that doesn't impair anything itself:
+ * <pre>
+ * java -Dchannel.loss=0 -Dchannel.dup=0 -Dchannel.corrupt=0 FileReceiver sr
+ * java -Dchannel.seed=42 -Dchannel.loss=0.02 -Dchannel.delay=20 ChannelProxy 2122 127.0.0.1 2121
+ * java -Dreceiver.port=2122 FileSender 127.0.0.1 sunset.jpg sr
+ * </pre>
+ */
+public class ChannelProxy {
+
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(Math.max(1, Long.getLong("proxy.idle", 60)));
+
+    private final int port;
+    private final InetSocketAddress target;
+    private final UnreliableChannel forward;
+    private final Map<SocketAddress, Client> clients = new ConcurrentHashMap<>();
+    // clients created so far, numbers the seeds of their reply channels
+    private int created = 0;
+    private volatile DatagramChannel listen;
+    private volatile boolean closed = false;
+
+    /**
+     * @param forward Channel from the clients to the target. The channels for the replies are created per client
+     *                from the system properties, see {@link UnreliableChannel#fromProperties}, with the seed of the
+     *                forward channel plus the number of the client.
+     */
+    public ChannelProxy(int port, InetSocketAddress target, UnreliableChannel forward) {
+        this.port = port;
+        this.target = target;
+        this.forward = forward;
+    }
+
+    /**
+     * Forwards datagrams until {@link #close()} is called.
+     */
+    public void serve() throws IOException {
+        listen = DatagramChannel.open().bind(new InetSocketAddress(port));
+        if (closed) {
+            listen.close();
+        }
+        System.out.println("Channel seed: " + forward.seed());
+        ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "proxy expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = TimeUnit.NANOSECONDS.toMillis(IDLE_TIMEOUT) / 2;
+        expiry.scheduleAtFixedRate(this::expireIdle, period, period, TimeUnit.MILLISECONDS);
+        ByteBuffer datagram = ByteBuffer.allocate(65536);
+        try {
+            while (true) {
+                datagram.clear();
+                SocketAddress source;
+                try {
+                    source = listen.receive(datagram);
+                } catch (AsynchronousCloseException e) {
+                    break;
+                }
+                datagram.flip();
+                Client client = clients.get(source);
+                if (client == null) {
+                    client = new Client(source);
+                    clients.put(source, client);
+                }
+                forward.transmit(datagram, client);
+            }
+        } finally {
+            expiry.shutdownNow();
+            forward.close();
+            System.out.println(forward.summary());
+            for (Client client : clients.values()) {
+                client.upstream.close();
+            }
+            listen.close();
+        }
+    }
+
+    /**
+     * Closes the sockets of the clients that have been idle for too long, their threads end and remove them.
+     */
+    private void expireIdle() {
+        long now = System.nanoTime();
+        for (Client client : clients.values()) {
+            if (now - client.lastActive >= IDLE_TIMEOUT) {
+                try {
+                    client.upstream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        DatagramChannel current = listen;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * Socket towards the target on behalf of one client, plus the thread that passes the replies back.
+     */
+    private class Client implements UnreliableChannel.Sink, Runnable {
+        private final SocketAddress address;
+        private final DatagramChannel upstream;
+        private final UnreliableChannel backward = UnreliableChannel.fromProperties(forward.seed() + ++created, 0, 0, 0);
+        private final UnreliableChannel.Sink reply;
+        private volatile long lastActive = System.nanoTime();
+
+        Client(SocketAddress address) throws IOException {
+            this.address = address;
+            this.upstream = DatagramChannel.open().bind(new InetSocketAddress(0)).connect(target);
+            this.reply = datagram -> {
+                lastActive = System.nanoTime();
+                listen.send(datagram, this.address);
+            };
+            System.out.println("Client " + address + ", reply channel seed: " + backward.seed());
+            Thread thread = new Thread(this, "proxy " + address);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void deliver(ByteBuffer datagram) throws IOException {
+            lastActive = System.nanoTime();
+            try {
+                upstream.write(datagram);
+            } catch (PortUnreachableException e) {
+                // target not running (yet), the client will retransmit
+            } catch (ClosedChannelException e) {
+                // expired meanwhile, lost like any other datagram
+            }
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer datagram = ByteBuffer.allocate(65536);
+            try {
+                while (true) {
+                    datagram.clear();
+                    try {
+                        upstream.receive(datagram);
+                    } catch (PortUnreachableException e) {
+                        // target not running (yet), the client will retransmit
+                        continue;
+                    }
+                    datagram.flip();
+                    backward.transmit(datagram, reply);
+                }
+            } catch (AsynchronousCloseException e) {
+                // proxy closed or client expired
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            } finally {
+                backward.close();
+                clients.remove(address, this);
+                try {
+                    upstream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public static void main(String... args) throws IOException {
+        // ChannelProxy <proxy port> <target address> <target port>, impairments are set by system properties
+        int port = Integer.parseInt(args[0]);
+        InetSocketAddress target = new InetSocketAddress(args[1], Integer.parseInt(args[2]));
+        ChannelProxy proxy = new ChannelProxy(port, target, UnreliableChannel.fromProperties(0, 0, 0));
+        // the proxy runs until it is killed, closing it lets serve report what the channel did on the way out
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                proxy.close();
+                main.join(1000);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }));
+        proxy.serve();
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Remembers which chunks of a file have been written to its ".part" file, so an interrupted transfer can be resumed
+ * with just the missing chunks. The bitmap is saved next to the part file as "[part file].map": magic (4), file size (8),
+ * number of chunks (4), chunk size (4), bitmap words (8 each, little endian as {@link BitSet#toLongArray()}).
+ * It is written to a temporary file first and then renamed, so a crash never leaves a half written bitmap behind.
+ * <p>
+ * A chunk is only marked after it has been written, so the saved bitmap never claims data the part file doesn't have.
+ */
+public class ChunkBitmap {
+
+    private static final int MAGIC = 0x43424D31;
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+
+    private final BitSet received;
+    private final int chunks;
+    private final int chunkSize;
+
+    public ChunkBitmap(int chunks, int chunkSize) {
+        this(new BitSet(chunks), chunks, chunkSize);
+    }
+
+    private ChunkBitmap(BitSet received, int chunks, int chunkSize) {
+        this.received = received;
+        this.chunks = chunks;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Loads a saved bitmap together with the chunk size it was recorded with.
+     *
+     * @return null if there is none or it belongs to a file of another size.
+     */
+    public static ChunkBitmap load(Path path, long fileSize) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC || data.getLong() != fileSize) {
+            return null;
+        }
+        int chunks = data.getInt();
+        int chunkSize = data.getInt();
+        int words = (chunks + 63) / 64;
+        if (chunkSize <= 0 || chunks != Math.max(1, (fileSize + chunkSize - 1) / chunkSize) || data.remaining() != 8 * words) {
+            return null;
+        }
+        long[] bits = new long[words];
+        data.asLongBuffer().get(bits);
+        return new ChunkBitmap(BitSet.valueOf(bits), chunks, chunkSize);
+    }
+
+    public void save(Path path, long fileSize) throws IOException {
+        long[] bits = Arrays.copyOf(received.toLongArray(), (chunks + 63) / 64);
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + 8 * bits.length).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(MAGIC).putLong(fileSize).putInt(chunks).putInt(chunkSize);
+        data.asLongBuffer().put(bits);
+        data.clear();
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public void set(int chunk) {
+        received.set(chunk);
+    }
+
+    public boolean get(int chunk) {
+        return received.get(chunk);
+    }
+
+    /**
+     * @return Number of chunks received so far.
+     */
+    public int cardinality() {
+        return received.cardinality();
+    }
+
+    public int chunks() {
+        return chunks;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return The chunks that have not been received yet, as ranges in ascending order.
+     */
+    public Ranges missing() {
+        Ranges missing = new Ranges();
+        for (int start = received.nextClearBit(0); start < chunks; ) {
+            int next = received.nextSetBit(start);
+            int end = next < 0 ? chunks : Math.min(next, chunks);
+            missing.add(start, end - start);
+            start = received.nextClearBit(end);
+        }
+        return missing;
+    }
+
+    /**
+     * Ranges of chunks that are sent as one continuous sequence: sequence number 0 is the first chunk of the first
+     * range, the sequence numbers of the second range follow behind the last one of the first and so on.
+     */
+    public static final class Ranges {
+        private int[] starts = new int[4];
+        private int[] lengths = new int[4];
+        // sequence number of the first chunk of every range
+        private int[] firstSequence = new int[4];
+        private int size = 0;
+        private int chunks = 0;
+
+        public void add(int start, int length) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+                firstSequence = Arrays.copyOf(firstSequence, size * 2);
+            }
+            starts[size] = start;
+            lengths[size] = length;
+            firstSequence[size] = chunks;
+            size++;
+            chunks += length;
+        }
+
+        /**
+         * @return Number of ranges.
+         */
+        public int size() {
+            return size;
+        }
+
+        public int start(int range) {
+            return starts[range];
+        }
+
+        public int length(int range) {
+            return lengths[range];
+        }
+
+        /**
+         * @return Number of chunks in all ranges.
+         */
+        public int chunks() {
+            return chunks;
+        }
+
+        /**
+         * @return The chunk that is sent with the given sequence number.
+         */
+        public int chunk(int sequence) {
+            int range = Arrays.binarySearch(firstSequence, 0, size, sequence);
+            if (range < 0) {
+                range = -range - 2;
+            }
+            return starts[range] + sequence - firstSequence[range];
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the chunks of a Selective Repeat transfer, offered by the sender in its SYN with the system property
+ * "compress": "none" (default), "deflate" or "lz4" ({@link Lz4Block}). The id is the byte sent in the SYN.
+ * <p>
+ * Every chunk is compressed on its own, so a lost packet doesn't hold up the others. A compressed chunk goes out as
+ * data packet with {@link #FLAG} set; its sequence number still tells the position in the file, and the receiver
+ * decompresses it before anything else looks at the data. Chunks that don't get at least {@link #MIN_SAVING} smaller
+ * are sent as they are, see {@link Packer}.
+ */
+public enum ChunkCompression {
+
+    NONE(0),
+    DEFLATE(1),
+    LZ4(2);
+
+    static final byte FLAG = 4;
+    // a chunk must shrink by 1/MIN_SAVING to be sent compressed
+    static final int MIN_SAVING = 16;
+    // chunks sent as they are after one that didn't shrink, before the next one is tried again
+    static final int BYPASS = 32;
+
+    final byte id;
+
+    ChunkCompression(int id) {
+        this.id = (byte) id;
+    }
+
+    /**
+     * @return A new compressor, to be reused for every chunk of one session, null for {@link #NONE}.
+     */
+    Compressor create() {
+        switch (this) {
+            case DEFLATE:
+                return new DeflateCompressor();
+            case LZ4:
+                return new Lz4Compressor();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The algorithm with the given id or null if it is unknown.
+     */
+    static ChunkCompression byId(byte id) {
+        for (ChunkCompression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name Name as in the system properties, case-insensitive, e.g. "lz4".
+     */
+    static ChunkCompression byName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown compression: " + name);
+        }
+    }
+
+    /**
+     * @return The algorithm set in the given system property or the default.
+     */
+    static ChunkCompression fromProperty(String property, ChunkCompression def) {
+        String name = System.getProperty(property);
+        return name == null ? def : byName(name);
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Compresses and decompresses single chunks. Not thread-safe, one instance per session.
+     */
+    interface Compressor {
+
+        /**
+         * Compresses the remaining bytes of {@code chunk} into {@code target} from its position, the positions of
+         * both buffers are left untouched.
+         *
+         * @return Compressed length or -1 if it doesn't fit into the remaining bytes of {@code target}.
+         */
+        int compress(ByteBuffer chunk, ByteBuffer target);
+
+        /**
+         * Fills the remaining bytes of {@code target} exactly with the decompressed chunk, the positions of both
+         * buffers are left untouched.
+         *
+         * @return false if the compressed chunk is malformed or doesn't have the expected length.
+         */
+        boolean decompress(ByteBuffer compressed, ByteBuffer target);
+    }
+
+    /**
+     * Raw Deflate at the fastest level: shrinks text and logs the most, at several times the CPU time of LZ4.
+     */
+    static final class DeflateCompressor implements Compressor {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final Inflater inflater = new Inflater(true);
+
+        @Override
+        public int compress(ByteBuffer chunk, ByteBuffer target) {
+            deflater.reset();
+            deflater.setInput(chunk.duplicate());
+            deflater.finish();
+            ByteBuffer output = target.duplicate();
+            deflater.deflate(output);
+            return deflater.finished() ? output.position() - target.position() : -1;
+        }
+
+        @Override
+        public boolean decompress(ByteBuffer compressed, ByteBuffer target) {
+            inflater.reset();
+            inflater.setInput(compressed.duplicate());
+            ByteBuffer output = target.duplicate();
+            try {
+                inflater.inflate(output);
+            } catch (DataFormatException e) {
+                return false;
+            }
+            return inflater.finished() && !output.hasRemaining();
+        }
+    }
+
+    static final class Lz4Compressor implements Compressor {
+        private final Lz4Block block = new Lz4Block();
+
+        @Override
+        public int compress(ByteBuffer chunk, ByteBuffer target) {
+            return block.compress(chunk, target);
+        }
+
+        @Override
+        public boolean decompress(ByteBuffer compressed, ByteBuffer target) {
+            return block.decompress(compressed, target);
+        }
+    }
+
+    /**
+     * Sender side: compresses a chunk if that pays off. After a chunk that didn't shrink enough, e.g. of a JPEG, the
+     * next {@link #BYPASS} chunks are sent as they are without trying, then the next one is tried as sample again.
+     */
+    static final class Packer {
+        private final Compressor compressor;
+        private final ByteBuffer packed;
+        private int bypass = 0;
+        private long rawBytes = 0;
+        private long packedBytes = 0;
+
+        /**
+         * @param chunkSize Largest chunk to compress.
+         */
+        Packer(Compressor compressor, int chunkSize) {
+            this.compressor = compressor;
+            this.packed = ByteBuffer.allocateDirect(chunkSize);
+        }
+
+        /**
+         * @return The compressed chunk, valid until the next call, or null if the chunk is to be sent as it is.
+         */
+        ByteBuffer pack(ByteBuffer chunk) {
+            int length = chunk.remaining();
+            rawBytes += length;
+            if (bypass > 0) {
+                bypass--;
+                packedBytes += length;
+                return null;
+            }
+            packed.clear().limit(length - length / MIN_SAVING);
+            int packedLength = compressor.compress(chunk, packed);
+            if (packedLength < 0) {
+                bypass = BYPASS;
+                packedBytes += length;
+                return null;
+            }
+            packedBytes += packedLength;
+            return packed.limit(packedLength);
+        }
+
+        /**
+         * @return Bytes on the wire per byte of the chunks so far, 1 without any compression.
+         */
+        double ratio() {
+            return rawBytes == 0 ? 1 : (double) packedBytes / rawBytes;
+        }
+    }
+}
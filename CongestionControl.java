@@ -0,0 +1,94 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+/**
+ * Decides how many packets may be in flight, driven by the loss and round trip time signals of the ACK path.
+ * The window of the receiver stays the upper bound, the congestion window only ever makes the sender send less.
+ * <p>
+ * The algorithm is chosen with the system property "cc": "newreno" (default, {@link NewRenoControl}), "delay"
+ * ({@link DelayBasedControl}) or "none" (always the full window, the behaviour before congestion control).
+ */
+public interface CongestionControl {
+
+    /**
+     * @return Number of packets that may be in flight.
+     */
+    int window();
+
+    /**
+     * @param acked   Number of packets newly acknowledged by an ACK.
+     * @param rttNanos Round trip time sample taken from this ACK or -1 if there is none (Karn's rule).
+     */
+    void onAck(int acked, long rttNanos);
+
+    /**
+     * A packet has been detected as lost from the ACKs, reacting once per window of data is up to the implementation.
+     *
+     * @param seq     Sequence number of the lost packet.
+     * @param nextSeq Sequence number of the next new packet, all packets before it are in flight or acknowledged.
+     */
+    void onLoss(int seq, int nextSeq);
+
+    /**
+     * The retransmission timer expired, the path may be congested heavily.
+     */
+    void onTimeout();
+
+    String name();
+
+    /**
+     * @param maxWindow Window of the receiver.
+     * @return The algorithm chosen by the system property "cc".
+     */
+    static CongestionControl configured(int maxWindow) {
+        switch (System.getProperty("cc", "newreno")) {
+            case "delay":
+                return new DelayBasedControl(maxWindow);
+            case "none":
+                return new FixedWindow(maxWindow);
+            default:
+                return new NewRenoControl(maxWindow);
+        }
+    }
+
+    /**
+     * No congestion control, the sender always uses the full window.
+     */
+    final class FixedWindow implements CongestionControl {
+        private final int window;
+
+        FixedWindow(int window) {
+            this.window = window;
+        }
+
+        @Override
+        public int window() {
+            return window;
+        }
+
+        @Override
+        public void onAck(int acked, long rttNanos) {
+        }
+
+        @Override
+        public void onLoss(int seq, int nextSeq) {
+        }
+
+        @Override
+        public void onTimeout() {
+        }
+
+        @Override
+        public String name() {
+            return "none";
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Datagrams of one session towards its peer, collected while the session works through the datagrams that arrived
+ * and written to the shared channel in one burst afterwards. They are copied back to back into a single direct
+ * buffer, so queuing one allocates nothing and the session may reuse its own buffer right away.
+ * <p>
+ * Java has no sendmmsg, so every datagram is still a system call of its own, but the calls are made in a row instead
+ * of being interleaved with packet processing. A datagram the socket send buffer has no room for is dropped like one
+ * lost on the way, the protocols retransmit; it is counted in the {@link TransferMetrics} of the session.
+ */
+public class DatagramBatch {
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress target;
+    private final int localPort;
+    private final ByteBuffer arena;
+    // end of every queued datagram in the arena
+    private final int[] ends;
+    private int count = 0;
+    private final TransferMetrics.Count dropped;
+
+    /**
+     * @param localPort Port the channel is bound to, the source port in the headers of the datagrams.
+     * @param depth     Datagrams queued before they are written without waiting for {@link #flush()}.
+     * @param capacity  Bytes queued at most, larger datagrams are written right away.
+     * @param dropped   Counts the datagrams dropped because the socket send buffer was full.
+     */
+    public DatagramBatch(DatagramChannel channel, int localPort, InetSocketAddress target, int depth, int capacity,
+                         TransferMetrics.Count dropped) {
+        this.channel = channel;
+        this.target = target;
+        this.localPort = localPort;
+        this.arena = ByteBuffer.allocateDirect(capacity);
+        this.ends = new int[Math.max(1, depth)];
+        this.dropped = dropped;
+    }
+
+    public int localPort() {
+        return localPort;
+    }
+
+    public int remotePort() {
+        return target.getPort();
+    }
+
+    /**
+     * Queues the remaining bytes of the buffer as one datagram, consuming them.
+     */
+    public void add(ByteBuffer datagram) throws IOException {
+        if (datagram.remaining() > arena.capacity()) {
+            flush();
+            write(datagram);
+            return;
+        }
+        if (count == ends.length || datagram.remaining() > arena.remaining()) {
+            flush();
+        }
+        arena.put(datagram);
+        ends[count++] = arena.position();
+    }
+
+    /**
+     * Writes all queued datagrams in the order they were added.
+     */
+    public void flush() throws IOException {
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            arena.limit(ends[i]).position(start);
+            write(arena);
+            start = ends[i];
+        }
+        arena.clear();
+        count = 0;
+    }
+
+    private void write(ByteBuffer datagram) throws IOException {
+        if (channel.send(datagram, target) == 0) {
+            dropped.increment();
+        }
+    }
+}
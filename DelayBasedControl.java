@@ -0,0 +1,99 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+/**
+ * Delay based congestion control in the style of TCP Vegas. Once per round trip the expected throughput (window /
+ * minimum RTT) is compared to the actual one (window / current RTT); the difference, counted in packets, is the
+ * amount of data queued on the path. The window grows while fewer than {@link #ALPHA} packets are queued and shrinks
+ * when more than {@link #BETA} are, so the sender backs off before a queue overflows instead of after.
+ * Losses and timeouts are handled like {@link NewRenoControl}.
+ */
+public class DelayBasedControl implements CongestionControl {
+
+    private static final int MIN_WINDOW = 2;
+    private static final int INITIAL_WINDOW = 10;
+    private static final double GAMMA = 1;
+    private static final double ALPHA = 2;
+    private static final double BETA = 4;
+
+    private final int maxWindow;
+    private int cwnd;
+    private boolean slowStart = true;
+    private long baseRtt = Long.MAX_VALUE;
+    // smallest sample of the current round trip, filters out samples inflated by delayed ACKs
+    private long roundRtt = Long.MAX_VALUE;
+    private int ackedInRound = 0;
+    private int recoverySeq = -1;
+
+    public DelayBasedControl(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.min(INITIAL_WINDOW, maxWindow);
+    }
+
+    @Override
+    public int window() {
+        return cwnd;
+    }
+
+    @Override
+    public void onAck(int acked, long rttNanos) {
+        if (rttNanos > 0) {
+            baseRtt = Math.min(baseRtt, rttNanos);
+            roundRtt = Math.min(roundRtt, rttNanos);
+        }
+        ackedInRound += acked;
+        if (ackedInRound < cwnd) {
+            return;
+        }
+        ackedInRound = 0;
+        if (roundRtt == Long.MAX_VALUE) {
+            return;
+        }
+        double queued = cwnd * (1.0 - (double) baseRtt / roundRtt);
+        roundRtt = Long.MAX_VALUE;
+
+        if (slowStart) {
+            if (queued > GAMMA) {
+                slowStart = false;
+                cwnd = Math.max(cwnd - (int) Math.ceil(queued), MIN_WINDOW);
+            } else {
+                cwnd = Math.min(cwnd * 2, maxWindow);
+            }
+        } else if (queued < ALPHA) {
+            cwnd = Math.min(cwnd + 1, maxWindow);
+        } else if (queued > BETA) {
+            cwnd = Math.max(cwnd - 1, MIN_WINDOW);
+        }
+    }
+
+    @Override
+    public void onLoss(int seq, int nextSeq) {
+        if (seq < recoverySeq) {
+            return;
+        }
+        recoverySeq = nextSeq;
+        slowStart = false;
+        cwnd = Math.max(cwnd / 2, MIN_WINDOW);
+        ackedInRound = 0;
+    }
+
+    @Override
+    public void onTimeout() {
+        slowStart = true;
+        cwnd = 1;
+        ackedInRound = 0;
+    }
+
+    @Override
+    public String name() {
+        return "delay";
+    }
+}
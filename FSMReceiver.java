@@ -24,17 +24,26 @@ public class FSMReceiver {
 
     private Transition[][] transition;
 
+    private final FsmListener listener;
+
     public FSMReceiver() {
+        this(FsmListener.configured());
+    }
+
+    /**
+     * @param listener Receives every transition of this FSM.
+     */
+    public FSMReceiver(FsmListener listener) {
+        this.listener = listener;
         currentState = State.WAIT_FOR_ZERO;
 
         transition = new Transition[State.values().length][Msg.values().length];
         transition[State.WAIT_FOR_ZERO.ordinal()][Msg.ALL_FINE.ordinal()] = new ExtractPacketAndSendAck();
-        transition[State.WAIT_FOR_ZERO.ordinal()][Msg.IS_CORRUPT.ordinal()] = new DoNothing();
-        transition[State.WAIT_FOR_ZERO.ordinal()][Msg.WRONG_ALTERNATING.ordinal()] = new DoNothing();
+        transition[State.WAIT_FOR_ZERO.ordinal()][Msg.IS_CORRUPT.ordinal()] = new SendNAK();
+        transition[State.WAIT_FOR_ZERO.ordinal()][Msg.WRONG_ALTERNATING.ordinal()] = new ResendLastACK();
         transition[State.WAIT_FOR_ONE.ordinal()][Msg.ALL_FINE.ordinal()] = new ExtractPacketAndSendAck();
-        transition[State.WAIT_FOR_ONE.ordinal()][Msg.IS_CORRUPT.ordinal()] = new DoNothing();
-        transition[State.WAIT_FOR_ONE.ordinal()][Msg.WRONG_ALTERNATING.ordinal()] = new DoNothing();
-        System.out.println("INFO: FSM Receiver constructed, current state: "+currentState);
+        transition[State.WAIT_FOR_ONE.ordinal()][Msg.IS_CORRUPT.ordinal()] = new SendNAK();
+        transition[State.WAIT_FOR_ONE.ordinal()][Msg.WRONG_ALTERNATING.ordinal()] = new ResendLastACK();
     }
 
     /**
@@ -42,15 +51,16 @@ public class FSMReceiver {
      * @param input Message or condition that has occurred.
      */
     public void processMsg(Msg input){
-        System.out.println("INFO Received "+input+" in state "+currentState);
+        State previous = currentState;
         Transition trans = transition[currentState.ordinal()][input.ordinal()];
         if(trans != null){
             currentState = trans.execute(input);
         }
-        System.out.println("INFO State: "+currentState);
+        listener.onTransition("FSMReceiver", previous, input, currentState, trans == null ? null : trans.name);
     }
 
     abstract class Transition {
+        final String name = getClass().getSimpleName();
         abstract public State execute(Msg input);
     }
 
@@ -59,27 +69,20 @@ public class FSMReceiver {
         @Override
         public State execute(Msg Input) {
             if(currentState == State.WAIT_FOR_ZERO) {
-                System.out.println("Packet arrived - data delivered - ACK sent. Waiting for next packet with Alternating Bit = 1.");
                 currentState = State.WAIT_FOR_ONE;
             }
             else {
-                System.out.println("Packet arrived - data delivered - ACK sent. Waiting for next packet with Alternating Bit = 0.");
                 currentState = State.WAIT_FOR_ZERO;
             }
             return currentState;
         }
     }
 
-    class DoNothing extends Transition {
+    class SendNAK extends Transition {
 
         @Override
         public State execute(Msg input) {
-            if(currentState == State.WAIT_FOR_ZERO) {
-                System.out.println("Corrupt packet - no further action - waiting for retransmission of packet with Alternating Bit = 1.");
-            }
-            else {
-                System.out.println("Corrupt packet - no further action - waiting for retransmission of packet with Alternating Bit = 0.");
-            }
+            // corrupt packet - NAK for the expected bit, sent by the caller - waiting for retransmission
             return currentState;
         }
     }
@@ -88,12 +91,7 @@ public class FSMReceiver {
 
         @Override
         public State execute(Msg Input) {
-            if(currentState == State.WAIT_FOR_ZERO) {
-                System.out.println("Wrong alternating bit - retransmission of last ACK - waiting for retransmission of packet with Alternating Bit = 1.");
-            }
-            else {
-                System.out.println("Wrong alternating bit - retransmission of last ACK - waiting for retransmission of packet with Alternating Bit = 0.");
-            }
+            // wrong alternating bit - retransmission of last ACK, sent by the caller - waiting for the next packet
             return currentState;
         }
     }
@@ -16,16 +16,25 @@ public class FSMSender {
     }
     // all messages/conditions which can occur
     enum Msg {
-        SEND, ALL_FINE, TIMEOUT, CORRUPT_OR_WRONG_BIT
+        SEND, ALL_FINE, TIMEOUT, CORRUPT_OR_WRONG_BIT, DUPLICATE_ACK
     }
     // current state of the FSM
     private State currentState;
     // 2D array defining all transitions that can occur
     private Transition[][] transition;
+    // receives every transition, does nothing unless tracing is enabled
+    private final FsmListener listener;
     /**
      * constructor
      */
     public FSMSender(){
+        this(FsmListener.configured());
+    }
+    /**
+     * @param listener Receives every transition of this FSM.
+     */
+    public FSMSender(FsmListener listener){
+        this.listener = listener;
         currentState = State.WAIT_CALL_0;
         transition = new Transition[State.values().length] [Msg.values().length];
 
@@ -33,29 +42,29 @@ public class FSMSender {
 
 
         transition[State.WAIT_ACK_0.ordinal()] [Msg.ALL_FINE.ordinal()] = new ReceiveACK();
-        transition[State.WAIT_ACK_0.ordinal()] [Msg.CORRUPT_OR_WRONG_BIT.ordinal()] = new DoNothing();
+        transition[State.WAIT_ACK_0.ordinal()] [Msg.CORRUPT_OR_WRONG_BIT.ordinal()] = new FastRetransmit();
+        transition[State.WAIT_ACK_0.ordinal()] [Msg.DUPLICATE_ACK.ordinal()] = new DoNothing();
         transition[State.WAIT_ACK_0.ordinal()] [Msg.TIMEOUT.ordinal()] = new ResendAfterTimeout();
 
         transition[State.WAIT_CALL_1.ordinal()] [Msg.SEND.ordinal()] = new SendPacket();
 
 
         transition[State.WAIT_ACK_1.ordinal()] [Msg.ALL_FINE.ordinal()] = new ReceiveACK();
-        transition[State.WAIT_ACK_1.ordinal()] [Msg.CORRUPT_OR_WRONG_BIT.ordinal()] = new DoNothing();
+        transition[State.WAIT_ACK_1.ordinal()] [Msg.CORRUPT_OR_WRONG_BIT.ordinal()] = new FastRetransmit();
+        transition[State.WAIT_ACK_1.ordinal()] [Msg.DUPLICATE_ACK.ordinal()] = new DoNothing();
         transition[State.WAIT_ACK_1.ordinal()] [Msg.TIMEOUT.ordinal()] = new ResendAfterTimeout();
-
-        System.out.println("INFO FSM constructed, current state: "+currentState);
     }
     /**
      * Process a message (a condition has occurred).
      * @param input Message or condition that has occurred.
      */
     public void processMsg(Msg input){
-        System.out.println("INFO Received "+input+" in state "+currentState);
+        State previous = currentState;
         Transition trans = transition[currentState.ordinal()][input.ordinal()];
         if(trans != null){
             currentState = trans.execute(input);
         }
-        System.out.println("INFO State: "+currentState);
+        listener.onTransition("FSMSender", previous, input, currentState, trans == null ? null : trans.name);
     }
     /**
      * Abstract base class for all transitions.
@@ -63,17 +72,16 @@ public class FSMSender {
      * to be performed whenever this transition occurs.
      */
     abstract class Transition {
+        final String name = getClass().getSimpleName();
         abstract public State execute(Msg input);
     }
     class SendPacket extends Transition {
         @Override
         public State execute(Msg input) {
             if(currentState == State.WAIT_CALL_0) {
-                System.out.println("Packet with bit 0 sent, wait for ACK 0");
                 currentState = State.WAIT_ACK_0;
             }
             else {
-                System.out.println("Packet sent, wait for ACK 1");
                 currentState = State.WAIT_ACK_1;
             }
             return currentState;
@@ -84,11 +92,9 @@ public class FSMSender {
         @Override
         public State execute(Msg input) {
             if(currentState == State.WAIT_ACK_0) {
-                System.out.println("ACK 0 received.");
                 currentState = State.WAIT_CALL_1;
             }
             else {
-                System.out.println("ACK 1 received.");
                 currentState = State.WAIT_CALL_0;
             }
             return currentState;
@@ -98,7 +104,15 @@ public class FSMSender {
     class DoNothing extends Transition {
         @Override
         public State execute(Msg input) {
-            System.out.println("ACK was received, but is either corrupt or has wrong bit.");
+            // duplicate ACK for an extra copy of the previous packet, expected
+            return currentState;
+        }
+    }
+
+    class FastRetransmit extends Transition {
+        @Override
+        public State execute(Msg input) {
+            // ACK was received, but is either corrupt, a NAK or has wrong bit - the packet is resent by the caller at once
             return currentState;
         }
     }
@@ -106,12 +120,7 @@ public class FSMSender {
     class ResendAfterTimeout extends Transition {
         @Override
         public State execute(Msg input) {
-            if(currentState == State.WAIT_ACK_0) {
-                System.out.println("Timeout occured: Resend packet 0.");
-            }
-            else {
-                System.out.println("Timeout occured: Resend packet 1.");
-            }
+            // timeout occurred, the packet is resent by the caller
             return currentState;
         }
     }
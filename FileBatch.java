@@ -0,0 +1,283 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Many files sent as one transfer: a directory tree or the files of a list, so they share one session with one SYN,
+ * one path MTU probe and one congestion window instead of paying for all of it per file. The transferred bytes are a
+ * manifest followed by the contents of all files one after the other, so a datagram carries the end of one small
+ * file together with the next ones and the packet count only depends on the total size.
+ * <p>
+ * Manifest: number of files (4), per file the path relative to the batch (2 byte length, UTF-8, '/' between the
+ * directories) and its size (8). The SYN announces the number of files besides the name of the batch, see
+ * {@link SessionSetup#batch}; everything else, resuming, digest and compression, works as for a single file. The
+ * receiver unpacks the files from its part file into the directory "src/rec_sr_[batch name]" once all data is there.
+ */
+public class FileBatch implements TransferSource {
+
+    static final int MAX_PATH_SIZE = 1024;
+
+    private final String name;
+    private final Path root;
+    private final String[] names;
+    // position of every file in the transferred bytes
+    private final long[] starts;
+    private final long[] sizes;
+    private final ByteBuffer manifest;
+    private final ByteBuffer manifestView;
+    private final long size;
+    // the file sliced last, kept open for the next chunk
+    private int openIndex = -1;
+    private MappedFileSource open;
+    // chunks across files are copied together here
+    private ByteBuffer scratch = ByteBuffer.allocate(0);
+
+    /**
+     * @param name  Name of the batch, the receiver's directory is named after it.
+     * @param files Paths relative to the root.
+     */
+    FileBatch(String name, Path root, List<String> files) throws IOException {
+        if (files.isEmpty()) {
+            throw new IOException("No files in batch " + root);
+        }
+        this.name = name;
+        this.root = root;
+        this.names = files.toArray(new String[0]);
+        this.starts = new long[names.length];
+        this.sizes = new long[names.length];
+        int manifestSize = 4;
+        byte[][] encoded = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            if (!validName(names[i]) || encoded[i].length > MAX_PATH_SIZE) {
+                throw new IOException("Invalid path in batch: " + names[i]);
+            }
+            sizes[i] = Files.size(root.resolve(names[i]));
+            manifestSize += 2 + encoded[i].length + 8;
+        }
+        this.manifest = ByteBuffer.allocate(manifestSize);
+        manifest.putInt(names.length);
+        long position = manifestSize;
+        for (int i = 0; i < names.length; i++) {
+            manifest.putShort((short) encoded[i].length).put(encoded[i]).putLong(sizes[i]);
+            starts[i] = position;
+            position += sizes[i];
+        }
+        this.manifestView = manifest.duplicate();
+        this.size = position;
+    }
+
+    /**
+     * Collects the regular files below a directory of the src folder, in the order of their paths. A regular file
+     * instead is read as a list of paths relative to the src folder, one per line.
+     *
+     * @param name Path of the directory or the list inside the src folder, its last part names the batch.
+     */
+    static FileBatch of(String name) throws IOException {
+        Path path = Paths.get("src", name);
+        String batchName = path.getFileName().toString();
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> walk = Files.walk(path)) {
+                return new FileBatch(batchName, path, walk.filter(Files::isRegularFile)
+                        .map(file -> path.relativize(file).toString().replace('\\', '/'))
+                        .sorted().collect(Collectors.toList()));
+            }
+        }
+        List<String> files = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) {
+                files.add(line.trim());
+            }
+        }
+        return new FileBatch(batchName, path.getParent(), files);
+    }
+
+    /**
+     * @return true for a relative path that stays below the directory of the batch.
+     */
+    static boolean validName(String name) {
+        if (name.isEmpty() || name.startsWith("/") || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+            return false;
+        }
+        for (String part : name.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String name() {
+        return name;
+    }
+
+    int files() {
+        return names.length;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) throws IOException {
+        long end = position + length;
+        int first = segment(position);
+        if (first < 0 && end <= manifest.capacity()) {
+            manifestView.limit((int) end).position((int) position);
+            return manifestView;
+        }
+        if (first >= 0 && end <= starts[first] + sizes[first]) {
+            return file(first).slice(position - starts[first], length);
+        }
+
+        if (scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(length);
+        }
+        scratch.clear();
+        for (int i = first; position < end; i++) {
+            long segmentStart = i < 0 ? 0 : starts[i];
+            long segmentEnd = i < 0 ? manifest.capacity() : starts[i] + sizes[i];
+            int piece = (int) (Math.min(end, segmentEnd) - position);
+            if (piece <= 0) {
+                continue;
+            }
+            if (i < 0) {
+                scratch.put(manifest.array(), (int) position, piece);
+            } else {
+                scratch.put(file(i).slice(position - segmentStart, piece));
+            }
+            position += piece;
+        }
+        return scratch.flip();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        int segment = segment(position);
+        if (segment < 0) {
+            manifestView.limit((int) Math.min(manifest.capacity(), position + count)).position((int) position);
+            return target.write(manifestView);
+        }
+        long length = Math.min(count, starts[segment] + sizes[segment] - position);
+        return file(segment).transferTo(position - starts[segment], length, target);
+    }
+
+    /**
+     * @return Index of the file the byte at the position belongs to, -1 for the manifest.
+     */
+    private int segment(long position) {
+        if (position < manifest.capacity()) {
+            return -1;
+        }
+        // last file starting at or before the position, empty files before it share its start
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private MappedFileSource file(int index) throws IOException {
+        if (index != openIndex) {
+            close();
+            open = new MappedFileSource(root.resolve(names[index]));
+            openIndex = index;
+            if (open.size() < sizes[index]) {
+                throw new IOException(names[index] + " got shorter while sending");
+            }
+        }
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (open != null) {
+            open.close();
+            open = null;
+            openIndex = -1;
+        }
+    }
+
+    /**
+     * Receiver side: writes the files of a completely received batch from the output into the directory.
+     *
+     * @param files Number of files the SYN announced.
+     * @throws IOException If the manifest doesn't match the received bytes or a file can't be written.
+     */
+    static void unpack(StreamingFileWriter output, long size, int files, Path directory) throws IOException {
+        ByteBuffer field = ByteBuffer.allocate(Math.max(8, MAX_PATH_SIZE));
+        long position = 0;
+        output.read(field.clear().limit(4), position);
+        position += 4;
+        if (field.getInt(0) != files) {
+            throw new IOException("Batch manifest lists " + field.getInt(0) + " files instead of " + files);
+        }
+        String[] names = new String[files];
+        long[] sizes = new long[files];
+        long contents = 0;
+        for (int i = 0; i < files; i++) {
+            output.read(field.clear().limit(2), position);
+            int length = field.getShort(0) & 0xFFFF;
+            if (length > MAX_PATH_SIZE || position + 2 + length + 8 > size) {
+                throw new IOException("Batch manifest broken at entry " + i);
+            }
+            output.read(field.clear().limit(length), position + 2);
+            names[i] = new String(field.array(), 0, length, StandardCharsets.UTF_8);
+            output.read(field.clear().limit(8), position + 2 + length);
+            sizes[i] = field.getLong(0);
+            if (!validName(names[i]) || sizes[i] < 0) {
+                throw new IOException("Invalid entry in batch manifest: " + names[i]);
+            }
+            position += 2 + length + 8;
+            contents += sizes[i];
+        }
+        if (position + contents != size) {
+            throw new IOException("Batch manifest covers " + (position + contents) + " of " + size + " bytes");
+        }
+
+        Files.createDirectories(directory);
+        for (int i = 0; i < files; i++) {
+            Path target = directory.resolve(names[i]);
+            Files.createDirectories(target.getParent());
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long end = position + sizes[i]; position < end; ) {
+                    long written = output.transferTo(position, end - position, channel);
+                    if (written <= 0) {
+                        throw new IOException("Unpacking " + names[i] + " stopped at " + position);
+                    }
+                    position += written;
+                }
+            }
+        }
+    }
+}
@@ -9,165 +9,265 @@
  * @version 2019-01-13
  */
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.Arrays;
-import java.util.zip.CRC32;
+import java.nio.file.Paths;
 
 
 public class FileSender {
 
-    private static final int SOURCE_PORT = 4242;
-    private static final byte[] SOURCE_BYTES = Arrays.copyOfRange(ByteBuffer.allocate(Integer.BYTES).putInt(SOURCE_PORT).array(), 2, 4);
-    private static final int DESTINATION_PORT = 2121;
-    private static final byte[] DESTINATION_BYTES = Arrays.copyOfRange(ByteBuffer.allocate(Integer.BYTES).putInt(DESTINATION_PORT).array(), 2, 4);
-    private static final int SIZE = 1400;
-    private static final int HEADER_SIZE = SOURCE_BYTES.length + DESTINATION_BYTES.length + 1 + 1 + 2 + 4; // Header size in byte: 1 = alternatingBit, 1 = send-end-flag,  2 = payload length, 4 = lower 4 byte of checksum
+    static final int SOURCE_PORT = 4242;
+    // port of the receiver, or of a ChannelProxy in front of it
+    static final int DESTINATION_PORT = Integer.getInteger("receiver.port", 2121);
+    // chunk size of throttled TCP transfers and default datagram size if the MTU towards the receiver is unknown, see PathMtu
+    static final int SIZE = 1400;
+    // socket buffers of TCP transfers, large enough for the bandwidth-delay product of a fast link
+    static final int TCP_BUFFER = Integer.getInteger("tcp.buffer", 4 << 20);
+    static final int HEADER_SIZE = 2 + 2 + 1 + 1 + 2 + 4; // Header size in byte: 2 = source port, 2 = destination port, 1 = alternatingBit, 1 = send-end-flag,  2 = payload length, 4 = lower 4 byte of checksum
     private static FSMSender fileSender = new FSMSender();
+    private static final PacketCodec codec = new PacketCodec(PacketCodec.ALTERNATING_BIT);
 
+    /**
+     * Sends the file with the Alternating-Bit-Protocol. The socket is a non-blocking channel, a timeout is a select
+     * that returns without the ACK rather than an exception.
+     * <p>
+     * A corrupt ACK, a NAK and a duplicate ACK of the previous packet resend the packet at once, the timeout is left for
+     * silence on the channel. Every extra copy of a packet earns an extra ACK from the receiver though, which arrives
+     * as duplicate while the next packet waits. Those echoes are expected and ignored, otherwise each of them would
+     * double the next packet as well (Sorcerer's Apprentice).
+     */
     private static void secureTransmissionViaUDP(String fileName, String ipTarget) throws IOException {
 
         InetAddress ip = InetAddress.getByName(ipTarget);
         File file = new File("src/"+fileName);
         byte[] bytesOfFile = Files.readAllBytes(file.toPath());
-        byte[] fileNameAsBytes = fileName.getBytes();
-        int fileNameLength = fileNameAsBytes.length;
 
         int sizeOfFile = bytesOfFile.length;
         int bytesProcessed = 0;
-        byte[] sendingData;
-        byte[] receivingData = new byte[9];
-        byte alternatingBit = Integer.valueOf(0).byteValue();
-        byte sendEndFlag = FileSender.setFlag(1);
-
-
-        DatagramSocket socket = new DatagramSocket(SOURCE_PORT);
-        socket.setSoTimeout(250);
-
-        boolean headerNotSent = true;
-        int counter = 0;
-        int timeouts = 0;
-
-        long start = System.currentTimeMillis();
-        while (bytesProcessed < sizeOfFile) {
-            fileSender.processMsg(FSMSender.Msg.SEND);
-            counter ++;
-            System.out.println("round "+ counter);
-            System.out.println("file bytes:" + bytesOfFile.length);
-
-            int length;
-            DatagramPacket packetOut;
-            if(headerNotSent) {
-                length = SIZE - HEADER_SIZE - 20;
-                byte[] firstPacket = new byte[length + 20];
-                System.arraycopy(fileNameAsBytes, 0, firstPacket, 0, fileNameLength);
-                System.arraycopy(bytesOfFile, 0, firstPacket, 20, length);
-                sendingData = FileSender.createChunkWithChecksum(alternatingBit, sendEndFlag, firstPacket);
-                packetOut = new DatagramPacket(sendingData, sendingData.length, ip, DESTINATION_PORT);
-            }
-            else {
-                length = Math.min(SIZE - HEADER_SIZE, sizeOfFile - bytesProcessed);
-                System.out.println("data\nlength: " + length);
-                System.out.println("bytes processed: " + bytesProcessed);
-                sendingData = FileSender.createChunkWithChecksum(alternatingBit, sendEndFlag, Arrays.copyOfRange(bytesOfFile, bytesProcessed, bytesProcessed + length));
-                packetOut = new DatagramPacket(sendingData, sendingData.length, ip, DESTINATION_PORT);
-            }
-            DatagramPacket packetIn = new DatagramPacket(receivingData, receivingData.length);
-            socket.send(packetOut);
-
-            boolean receiving = true;
-
-            while (receiving) {
-                try {
-                    socket.receive(packetIn);
-                    byte[] ack = packetIn.getData();
-
-                    if (FileSender.checkACK(ack, alternatingBit)) { //check if checksum and is correct
-                        bytesProcessed += length;
-                        receiving = false;
-                        alternatingBit ^= 1;
-                        fileSender.processMsg(FSMSender.Msg.ALL_FINE);
-                        if(headerNotSent) {
-                            headerNotSent = false;
+        ByteBuffer receivingBuffer = ByteBuffer.allocateDirect(codec.ackSize);
+        byte alternatingBit = Integer.valueOf(1).byteValue();
+        byte sendEndFlag;
+        // duplicate ACKs still to come for the copies of the previous packet
+        int echoes = 0;
+
+        RttEstimator rtt = new RttEstimator();
+
+        TransferMetrics metrics = TransferMetrics.open("abp to " + ip.getHostAddress() + " " + fileName);
+
+        try (DatagramChannel socket = DatagramChannel.open(); Selector selector = Selector.open()) {
+            socket.bind(new InetSocketAddress(SOURCE_PORT));
+            socket.connect(new InetSocketAddress(ip, DESTINATION_PORT));
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_READ);
+
+            long start = System.nanoTime();
+            // the SYN goes with alternating bit 0, the data starts with 1
+            int limit = PathMtu.limit(new InetSocketAddress(ip, DESTINATION_PORT));
+            SessionSetup setup = new SessionSetup(fileName, sizeOfFile, limit - HEADER_SIZE, 1);
+            // only Selective Repeat checks a digest of the whole file and compresses chunks
+            setup.digest = PacketChecksum.NONE.id;
+            setup.compression = ChunkCompression.NONE.id;
+            int chunkSize = openSession(socket, selector, setup, rtt);
+            ByteBuffer sendingBuffer = ByteBuffer.allocateDirect(HEADER_SIZE + chunkSize);
+            do {
+                fileSender.processMsg(FSMSender.Msg.SEND);
+                metrics.packetsSent.increment();
+
+                int length = Math.min(chunkSize, sizeOfFile - bytesProcessed);
+                sendEndFlag = bytesProcessed + length < sizeOfFile ? FileSender.setFlag(1) : FileSender.setFlag(2);
+                FileSender.createChunkWithChecksum(sendingBuffer, alternatingBit, sendEndFlag, 0, bytesOfFile, bytesProcessed, length);
+                send(socket, sendingBuffer);
+                long sentAt = System.nanoTime();
+                long deadline = sentAt + rtt.rtoNanos();
+                int copies = 1;
+
+                boolean receiving = true;
+
+                while (receiving) {
+                    if (!await(selector, deadline)) {
+                        fileSender.processMsg(FSMSender.Msg.TIMEOUT);
+                        rtt.backoff();
+                        send(socket, sendingBuffer);
+                        deadline = System.nanoTime() + rtt.rtoNanos();
+                        copies++;
+                        metrics.packetsSent.increment();
+                        metrics.retransmissions.increment();
+                        metrics.timeouts.increment();
+                        continue;
+                    }
+                    while (receiving && receive(socket, receivingBuffer)) {
+                        metrics.acksReceived.increment();
+                        int acknowledged = codec.checkACK(receivingBuffer);
+                        if (acknowledged == alternatingBit) {
+                            if (copies == 1) {
+                                // Karn's rule: only packets sent once give an unambiguous round trip time
+                                long sample = System.nanoTime() - sentAt;
+                                rtt.sample(sample);
+                                metrics.recordRtt(sample);
+                            }
+                            bytesProcessed += length;
+                            metrics.bytes.add(length);
+                            receiving = false;
+                            alternatingBit ^= 1;
+                            echoes = copies - 1;
+                            fileSender.processMsg(FSMSender.Msg.ALL_FINE);
+                        } else if (acknowledged == (alternatingBit ^ 1) && echoes > 0) {
+                            echoes--;
+                            fileSender.processMsg(FSMSender.Msg.DUPLICATE_ACK);
+                        } else if (acknowledged == (PacketCodec.NAK | alternatingBit ^ 1)) {
+                            // NAK overtaken by the ACK of the previous packet
+                            fileSender.processMsg(FSMSender.Msg.DUPLICATE_ACK);
+                        } else {
+                            // corrupt ACK, NAK or an unexpected duplicate
+                            send(socket, sendingBuffer);
+                            deadline = System.nanoTime() + rtt.rtoNanos();
+                            copies++;
+                            metrics.packetsSent.increment();
+                            metrics.retransmissions.increment();
+                            fileSender.processMsg(FSMSender.Msg.CORRUPT_OR_WRONG_BIT);
                         }
-                    } else {
-                        socket.send(packetOut);
-                        counter++;
-                        fileSender.processMsg(FSMSender.Msg.CORRUPT_OR_WRONG_BIT);
                     }
-                } catch (SocketTimeoutException ex) {
-                    fileSender.processMsg(FSMSender.Msg.TIMEOUT);
-                    socket.send(packetOut);
-                    counter++;
-                    timeouts++;
                 }
-            }
-            sendEndFlag = bytesProcessed + length < sizeOfFile ? FileSender.setFlag(1) : FileSender.setFlag(2);
+            } while (bytesProcessed < sizeOfFile);
+            long duration = System.nanoTime() - start;
+            printStats(bytesProcessed, calculateThroughput(duration, bytesProcessed), 0, 0, (int) metrics.packetsSent.get());
+        } finally {
+            metrics.close();
         }
-        long duration = System.currentTimeMillis() - start;
-        printStats(bytesProcessed, calculateThroughput(duration, bytesProcessed), 0, 0, counter);
-        socket.close();
-        System.out.println("Timeouts: " +timeouts);
+        System.out.println("Timeouts: " + metrics.timeouts.get());
+        System.out.println(rtt.summary());
     }
 
     /**
-     * Creates a chunk that contains source port, destination port, alternating bit, payload length, checksum and payload (in this order) as byte values.
-     * Alternating bit is represented by one byte, payload length by lower three bytes. Port numbers are reduced to the lower two bytes, long value checksum to its lower four bytes.
+     * Sends the SYN of the transfer with alternating bit 0 until the receiver answers it, see {@link SessionSetup}.
+     * SYN and SYN-ACK carry a CRC32, the codec uses the negotiated checksum afterwards.
      *
-     * @param alternatingBit A byte representing zero or one.
-     * @param payLoad        Raw message as array of bytes.
-     * @return A byte array of maximum length 1400.
+     * @return Chunk size the receiver accepted.
+     * @throws IOException If the receiver rejected the transfer.
      */
-    private static byte[] createChunkWithChecksum(byte alternatingBit, byte sendEndFlag, byte[] payLoad) {
-
-        // creating byte array for header and payload - no checksum consideration yet
-        byte[] newPayLoad = new byte[HEADER_SIZE + payLoad.length - 4];
-        int index = 0;
-
-        System.arraycopy(SOURCE_BYTES, 0, newPayLoad, index, SOURCE_BYTES.length);
-        index += SOURCE_BYTES.length;
-
-        System.arraycopy(DESTINATION_BYTES, 0, newPayLoad, index, DESTINATION_BYTES.length);
-        index += DESTINATION_BYTES.length;
-
-        newPayLoad[index] = alternatingBit;
-        index++;
-
-        newPayLoad[index] = sendEndFlag;
-        index++;
-
-        byte[] payloadLengthAsBytes = ByteBuffer.allocate(Integer.BYTES).putInt(payLoad.length).array();
-        System.arraycopy(payloadLengthAsBytes, 2, newPayLoad, index, payloadLengthAsBytes.length - 2);
-        index += payloadLengthAsBytes.length - 2;
-
-        System.arraycopy(payLoad, 0, newPayLoad, index, payLoad.length);
-
-
-        // generating checksum for payload + header
-        long checksum = FileSender.getChecksum(newPayLoad);
-        byte[] checksumBytes = ByteBuffer.allocate(Long.BYTES).putLong(checksum).array();
+    private static int openSession(DatagramChannel socket, Selector selector, SessionSetup setup, RttEstimator rtt) throws IOException {
+        ByteBuffer syn = ByteBuffer.allocateDirect(SIZE);
+        syn.position(HEADER_SIZE);
+        setup.writeSyn(syn, 0);
+        codec.use(PacketChecksum.CRC32);
+        codec.encode(syn, SOURCE_PORT, DESTINATION_PORT, 0, SessionSetup.SYN_FLAG, syn.position() - HEADER_SIZE);
+        ByteBuffer answer = ByteBuffer.allocateDirect(SIZE);
+
+        fileSender.processMsg(FSMSender.Msg.SEND);
+        send(socket, syn);
+        long sentAt = System.nanoTime();
+        long deadline = sentAt + rtt.rtoNanos();
+        boolean retransmitted = false;
+        while (true) {
+            if (!await(selector, deadline)) {
+                fileSender.processMsg(FSMSender.Msg.TIMEOUT);
+                rtt.backoff();
+                send(socket, syn);
+                deadline = System.nanoTime() + rtt.rtoNanos();
+                retransmitted = true;
+                continue;
+            }
+            while (receive(socket, answer)) {
+                if (codec.wrap(answer).isCorrupt() || codec.sequence() != 0 || (codec.flag() & SessionSetup.SYN_FLAG) == 0
+                        || codec.payloadLength() < SessionSetup.ANSWER_SIZE) {
+                    // e.g. a late ACK of an earlier transfer
+                    continue;
+                }
+                if (!retransmitted) {
+                    rtt.sample(System.nanoTime() - sentAt);
+                }
+                ByteBuffer payload = codec.payload();
+                byte status = payload.get();
+                if (status != SessionSetup.ACCEPTED) {
+                    throw new IOException("Transfer of " + setup.fileName + " rejected: " + SessionSetup.statusText(status));
+                }
+                payload.getInt();
+                int chunkSize = Math.max(1, Math.min(setup.chunkSize, payload.getShort() & 0xFFFF));
+                PacketChecksum checksum = PacketChecksum.byId(payload.get());
+                if (checksum == null) {
+                    throw new IOException("Receiver chose an unknown checksum algorithm");
+                }
+                codec.use(checksum);
+                fileSender.processMsg(FSMSender.Msg.ALL_FINE);
+                return chunkSize;
+            }
+        }
+    }
 
+    /**
+     * Waits until a datagram can be read or the deadline ({@link System#nanoTime()}) has passed.
+     *
+     * @return false on timeout.
+     */
+    private static boolean await(Selector selector, long deadline) throws IOException {
+        for (long wait; (wait = deadline - System.nanoTime()) > 0; ) {
+            // select waits whole milliseconds, round up so the timeout doesn't fire early
+            if (selector.select(Math.max(1, (wait + 999_999) / 1_000_000)) > 0) {
+                selector.selectedKeys().clear();
+                return true;
+            }
+        }
+        return false;
+    }
 
-        // reuse of index variable
-        index = 0;
+    /**
+     * Writes the datagram from position 0 to the limit of the buffer.
+     */
+    private static void send(DatagramChannel socket, ByteBuffer datagram) throws IOException {
+        try {
+            socket.write(datagram.position(0));
+        } catch (PortUnreachableException e) {
+            // receiver not up (yet), the timeout takes care of it
+        }
+    }
 
-        // result array - checksum will be added to existing information
-        byte[] result = new byte[newPayLoad.length + 4];
-        System.arraycopy(newPayLoad, 0, result, index, 8);
-        index += 8;
-        System.arraycopy(checksumBytes, 4, result, index, 4);
-        index += 4;
-        System.arraycopy(newPayLoad, 8, result, index, newPayLoad.length - 8);
+    /**
+     * Reads the next waiting datagram into the buffer, from index 0 up to its limit.
+     *
+     * @return false if none is waiting.
+     */
+    private static boolean receive(DatagramChannel socket, ByteBuffer datagram) throws IOException {
+        datagram.clear();
+        try {
+            if (socket.receive(datagram) == null) {
+                return false;
+            }
+        } catch (PortUnreachableException e) {
+            return false;
+        }
+        datagram.flip();
+        return true;
+    }
 
-        return result;
+    /**
+     * Creates a chunk that contains source port, destination port, alternating bit, send-end-flag, payload length, checksum and payload (in this order)
+     * inside the given datagram buffer. Port numbers are reduced to the lower two bytes, long value checksum to its lower four bytes.
+     *
+     * @param datagram       Buffer large enough for header and chunk the chunk is encoded into.
+     * @param alternatingBit A byte representing zero or one.
+     * @param prefixLength   Number of payload bytes that have already been put behind the header.
+     * @param src            Raw message as array of bytes.
+     * @param srcIndex       Index of the first byte of {@code src} to send.
+     * @param length         Number of bytes of {@code src} to send.
+     * @return Length of the chunk including the header.
+     */
+    static int createChunkWithChecksum(ByteBuffer datagram, byte alternatingBit, byte sendEndFlag, int prefixLength, byte[] src, int srcIndex, int length) {
+        datagram.put(HEADER_SIZE + prefixLength, src, srcIndex, length);
+        codec.encode(datagram, SOURCE_PORT, DESTINATION_PORT, alternatingBit, sendEndFlag, prefixLength + length);
+        return datagram.limit();
     }
 
 
-    private static byte setFlag(int flag) {
+    static byte setFlag(int flag) {
         byte result = 0;
 
         if (flag == 1)
@@ -179,76 +279,78 @@ public class FileSender {
     }
 
 
-    private static long getChecksum(byte[] payload) {
-        CRC32 crc32 = new CRC32();
-        crc32.update(payload);
-        return crc32.getValue();
-    }
-
-
-    private static boolean checkACK(byte[] ack, int expectedBit) {
-
-        int index = 0;
-        byte[] intValues = new byte[5];
-        byte[] longValue = new byte[8];
-        CRC32 checksumTest = new CRC32();
-
-        // bytes for source port (2), destination port(2) and sequence number of ack(1)
-        System.arraycopy(ack, 0, intValues, index, intValues.length);
-        checksumTest.update(intValues);
-        index += intValues.length;
-
-        // extracting given checksum
-        System.arraycopy(ack, index, longValue, 4, 4);
-        long checksum = ByteBuffer.wrap(longValue).getLong();
-
-        return checksumTest.getValue() == checksum && intValues[4] == expectedBit;
+    static boolean checkACK(ByteBuffer ack, int expectedBit) {
+        return codec.checkACK(ack) == expectedBit;
     }
 
+    /**
+     * Sends the file over TCP as one length-framed stream: name length (2), file name (UTF-8), file size (8), then the
+     * content of the file, handed from the file to the socket by {@link FileChannel#transferTo} (sendfile) without a
+     * copy through the heap. The receiver answers with the number of bytes it has written (8) once the file is
+     * complete, so the throughput covers the whole transfer and not just filling the socket buffer.
+     *
+     * @param delayMillis Pause after every {@code flag} chunks of {@link #SIZE} bytes to throttle the rate, 0 for none.
+     * @param flag        Number of chunks between two pauses, 0 to send without pausing.
+     */
     public static void sendViaTCP(String fileName, String address, int port, long delayMillis, int flag) throws IOException, InterruptedException {
+        try (MappedFileSource file = new MappedFileSource(Paths.get("src", fileName))) {
+            sendViaTCP(fileName, file, address, port, delayMillis, flag);
+        }
+    }
 
-        byte[] message = Files.readAllBytes(new File("src/"+fileName).toPath());
-        int length = message.length;
+    /**
+     * Sends the bytes of the source over TCP in the framing of {@link #sendViaTCP(String, String, int, long, int)}, e.g.
+     * a {@link FileBatch}, which the receiver stores as one file.
+     */
+    static void sendViaTCP(String fileName, TransferSource file, String address, int port, long delayMillis, int flag) throws IOException, InterruptedException {
         InetAddress ip = InetAddress.getByName(address);
-        Socket socket = new Socket(ip, port);
-        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
-        byte[] packet;
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
         int packetNumber = 0;
         long bytesSent = 0;
-        int currentIndex = 0;
-        long start = System.currentTimeMillis();
-        boolean headerNotSent = true;
-
-        while (bytesSent < length) {
-
-            if(headerNotSent) {
-                byte[] nameAsArray = fileName.getBytes();
-                packet = createChunk(++packetNumber, nameAsArray, 0);
-                bytesSent += packet.length-4;
-                output.write(packet);
-                output.flush();
-                headerNotSent = false;
+
+        try (SocketChannel socket = SocketChannel.open()) {
+            long length = file.size();
+            // set before connecting, so the window scale of the connection is chosen for it
+            socket.setOption(StandardSocketOptions.SO_SNDBUF, TCP_BUFFER);
+            socket.setOption(StandardSocketOptions.SO_RCVBUF, TCP_BUFFER);
+            socket.connect(new InetSocketAddress(ip, port));
+            long start = System.nanoTime();
+
+            ByteBuffer header = ByteBuffer.allocate(2 + name.length + 8);
+            header.putShort((short) name.length).put(name).putLong(length).flip();
+            while (header.hasRemaining()) {
+                socket.write(header);
+            }
+            // throttled transfers go in bursts of flag chunks, all others in as few calls as the kernel allows
+            long burst = flag != 0 && delayMillis != 0 ? (long) flag * SIZE : length;
+            while (bytesSent < length) {
+                bytesSent += file.transferTo(bytesSent, Math.min(burst, length - bytesSent), socket);
+                packetNumber++;
+                if (burst < length) {
+                    Thread.sleep(delayMillis);
+                }
             }
-            else {
-                packet = FileSender.createChunk(++packetNumber, message, currentIndex);
-                output.write(packet);
-                output.flush();
-                bytesSent += packet.length -4;
-                currentIndex = (currentIndex + SIZE - 4) % length;
+            socket.shutdownOutput();
+
+            ByteBuffer answer = ByteBuffer.allocate(8);
+            while (answer.hasRemaining()) {
+                if (socket.read(answer) < 0) {
+                    break;
+                }
             }
-            // this can throw an InterruptedException
-            if (flag != 0 && packetNumber % flag == 0)
-                Thread.sleep(delayMillis);
-        }
-        long duration = System.currentTimeMillis() - start;
-        socket.close();
-        System.out.println("bytes actually sent: "+bytesSent);
+            if (answer.hasRemaining() || answer.getLong(0) != length) {
+                throw new IOException("TCP receiver confirmed " + (answer.hasRemaining() ? "nothing" : answer.getLong(0)
+                        + " bytes") + " of " + length);
+            }
+            long duration = System.nanoTime() - start;
+            System.out.println("bytes actually sent: "+bytesSent);
 
-        FileSender.printStats(bytesSent, FileSender.calculateThroughput(duration, bytesSent), delayMillis, flag, packetNumber);
+            FileSender.printStats(bytesSent, FileSender.calculateThroughput(duration, bytesSent), delayMillis, flag, packetNumber);
+        }
     }
 
 
-    private static void printStats(long bytesSent, float throughput, long delay, int flag, int packets) {
+    static void printStats(long bytesSent, float throughput, long delay, int flag, int packets) {
         String expectedRate;
         if(delay == 0) {
             expectedRate = "Theoretically unlimited";
@@ -266,31 +368,44 @@ public class FileSender {
                 "\n-------------------------------");
     }
 
-    private static byte[] createChunk(int id, byte[] src, int srcIndex) {
-        byte[] packID = FileSender.createByteArrayForChunk(id);
-        byte[] chunk = new byte[SIZE];
-        System.arraycopy(packID,0, chunk, 0, packID.length);
-        System.arraycopy(src, srcIndex, chunk, packID.length, Math.min((src.length-srcIndex), (SIZE-packID.length)));
-        return chunk;
-    }
-
-
-    private static byte[] createByteArrayForChunk(int id) {
-        return ByteBuffer.allocate(Integer.SIZE/8).putInt(id).array();
-    }
-
-
-    private static float calculateThroughput(long duration, long sentBytes) {
-        long div = 1000;
-        long durationInSec = duration / div;
-        long data_kbit = (sentBytes * 8) / div;
-        return data_kbit / (float) durationInSec;
+    /**
+     * @param duration Duration of the transfer in nanoseconds.
+     * @return Throughput in kbit/s.
+     */
+    static float calculateThroughput(long duration, long sentBytes) {
+        double durationInSec = Math.max(1, duration) / 1e9;
+        double data_kbit = (sentBytes * 8) / 1000.0;
+        return (float) (data_kbit / durationInSec);
     }
 
     public static void main(String... args) throws IOException, InterruptedException {
         String ipAddress = args[0];
         String fileName = args[1];
-        sendViaTCP(fileName,ipAddress,80,0,0);
-        secureTransmissionViaUDP(fileName, ipAddress);
+        // optional: "abp" (default) for alternating bit, "sr" for selective repeat with the given window size
+        // or "parallel" for selective repeat over the given number of streams, "batch" sends all files below the
+        // directory (or of the list) fileName in one selective repeat session
+        String mode = args.length > 2 ? args[2] : "abp";
+        int window = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        if (mode.equals("batch")) {
+            // the baseline sends the same bytes as the batch, manifest and all files
+            try (FileBatch batch = FileBatch.of(fileName)) {
+                sendViaTCP(batch.name(), batch, ipAddress, 80, 0, 0);
+            }
+        } else {
+            sendViaTCP(fileName, ipAddress, 80, 0, 0);
+        }
+        if (mode.equals("sr")) {
+            SelectiveRepeatSender.transmit(fileName, ipAddress, window);
+        }
+        else if (mode.equals("batch")) {
+            SelectiveRepeatSender.transmitBatch(fileName, ipAddress, window);
+        }
+        else if (mode.equals("parallel")) {
+            int streams = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+            ParallelSender.transmit(fileName, ipAddress, window, streams);
+        }
+        else {
+            secureTransmissionViaUDP(fileName, ipAddress);
+        }
     }
 }
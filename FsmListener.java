@@ -0,0 +1,39 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+/**
+ * Receives every transition of {@link FSMSender} and {@link FSMReceiver}. Implementations are called on the packet
+ * path of the sender and receiver, so they must return quickly and must not allocate per event.
+ * <p>
+ * The default {@link #NONE} ignores all events. Setting the system property "fsm.trace" to "async" logs them to
+ * standard output through an {@link AsyncFsmLogger} instead, e.g. {@code java -Dfsm.trace=async FileSender ...}.
+ */
+public interface FsmListener {
+
+    FsmListener NONE = (machine, from, input, to, action) -> {
+    };
+
+    /**
+     * @param machine Name of the state machine, e.g. "FSMSender".
+     * @param from    State before the transition.
+     * @param input   Message or condition that has occurred.
+     * @param to      State after the transition.
+     * @param action  Name of the executed transition or null if the message has no transition in state {@code from}.
+     */
+    void onTransition(String machine, Enum<?> from, Enum<?> input, Enum<?> to, String action);
+
+    /**
+     * @return The listener selected by the system property "fsm.trace", {@link #NONE} by default.
+     */
+    static FsmListener configured() {
+        return "async".equals(System.getProperty("fsm.trace")) ? AsyncFsmLogger.shared() : NONE;
+    }
+}
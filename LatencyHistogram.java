@@ -0,0 +1,92 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+/**
+ * Histogram of non-negative values with logarithmic buckets: every power of two is split into 8 linear sub buckets,
+ * so recorded values are kept with a precision of 12.5% in a fixed amount of memory.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : sum / (double) count;
+    }
+
+    /**
+     * @param percentile Value between 0 and 100.
+     * @return Value below which the given percentage of all recorded values lies, 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, Math.max(min, valueAt(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return Summary line with count, minimum, mean, 50th/90th/99th percentile and maximum.
+     */
+    public String summary(String unit) {
+        if (count == 0) {
+            return "no samples";
+        }
+        return "n=" + count + " min=" + min + unit + " mean=" + Math.round(mean()) + unit
+                + " p50=" + percentile(50) + unit + " p90=" + percentile(90) + unit
+                + " p99=" + percentile(99) + unit + " max=" + max + unit;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return Middle of the range of values that fall into the given bucket.
+     */
+    static long valueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Compressor and decompressor for the LZ4 block format: a sequence of a token (literal length and match length - 4,
+ * 4 bits each, 15 continued in extra bytes of up to 255 each), the literals, the match offset (2, little endian) back
+ * into the output and the extra match length bytes. The last sequence holds literals only and ends the block.
+ * <p>
+ * The compressor finds matches greedily through a hash table of 4 byte sequences and skips ahead faster the longer it
+ * finds none, so incompressible data costs little time. It compresses less than Deflate but several times faster,
+ * for links where the CPU and not the bandwidth is the limit. Not thread-safe, hash table and buffers are reused per
+ * block.
+ */
+public class Lz4Block {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    // the last match must start this many bytes before the end and leave the last LAST_LITERALS bytes as literals
+    private static final int MATCH_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int HASH_BITS = 12;
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // positions plus the generation of the block, so entries of earlier blocks are outdated without clearing the table
+    private final int[] table = new int[1 << HASH_BITS];
+    private int generation = 0;
+    // heap copies of input and output, array access is a lot cheaper than absolute gets on a direct buffer
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+
+    /**
+     * Compresses the remaining bytes of {@code source} into {@code target} from its position. The positions of both
+     * buffers are left untouched.
+     *
+     * @return Length of the block or -1 if it doesn't fit into the remaining bytes of {@code target}.
+     */
+    int compress(ByteBuffer source, ByteBuffer target) {
+        int end = source.remaining();
+        int outEnd = target.remaining();
+        byte[] in = input(end);
+        byte[] out = output(outEnd);
+        source.get(source.position(), in, 0, end);
+
+        int o = 0;
+        int anchor = 0;
+        if (end > MATCH_LIMIT) {
+            if (generation > Integer.MAX_VALUE - end - MAX_OFFSET) {
+                Arrays.fill(table, 0);
+                generation = 0;
+            }
+            int base = generation + MAX_OFFSET + 1;
+            generation = base + end;
+            int matchLimit = end - MATCH_LIMIT;
+            int i = 0;
+            while (i < matchLimit) {
+                int sequence = (int) INT.get(in, i);
+                int hash = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+                int ref = table[hash] - base;
+                table[hash] = base + i;
+                if (ref < 0 || i - ref > MAX_OFFSET || (int) INT.get(in, ref) != sequence) {
+                    i += 1 + ((i - anchor) >>> 6);
+                    continue;
+                }
+                while (i > anchor && ref > 0 && in[i - 1] == in[ref - 1]) {
+                    i--;
+                    ref--;
+                }
+                int length = MIN_MATCH;
+                while (i + length < end - LAST_LITERALS && in[i + length] == in[ref + length]) {
+                    length++;
+                }
+                o = putSequence(in, anchor, i - anchor, i - ref, length, out, o, outEnd);
+                if (o < 0) {
+                    return -1;
+                }
+                i += length;
+                anchor = i;
+            }
+        }
+        o = putSequence(in, anchor, end - anchor, 0, 0, out, o, outEnd);
+        if (o < 0) {
+            return -1;
+        }
+        target.put(target.position(), out, 0, o);
+        return o;
+    }
+
+    /**
+     * Writes one sequence, without match for a match length of 0.
+     *
+     * @return Index behind the sequence or -1 if it doesn't fit.
+     */
+    private static int putSequence(byte[] in, int literals, int literalLength, int offset, int matchLength,
+                                   byte[] out, int o, int outEnd) {
+        if (o + 1 + literalLength / 255 + 1 + literalLength + 2 + matchLength / 255 + 1 > outEnd) {
+            // not exact for the last sequence, it may be rejected although it would just fit
+            return -1;
+        }
+        int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        out[o++] = (byte) (Math.min(literalLength, 15) << 4 | Math.min(matchCode, 15));
+        o = putLength(out, o, literalLength);
+        System.arraycopy(in, literals, out, o, literalLength);
+        o += literalLength;
+        if (matchLength != 0) {
+            out[o++] = (byte) offset;
+            out[o++] = (byte) (offset >>> 8);
+            o = putLength(out, o, matchCode);
+        }
+        return o;
+    }
+
+    private static int putLength(byte[] out, int o, int length) {
+        if (length >= 15) {
+            int rest = length - 15;
+            for (; rest >= 255; rest -= 255) {
+                out[o++] = (byte) 255;
+            }
+            out[o++] = (byte) rest;
+        }
+        return o;
+    }
+
+    /**
+     * Decompresses the remaining bytes of {@code source} into the remaining bytes of {@code target}, which must be
+     * filled exactly. The positions of both buffers are left untouched.
+     *
+     * @return false if the block is malformed or doesn't have the expected length.
+     */
+    boolean decompress(ByteBuffer source, ByteBuffer target) {
+        int end = source.remaining();
+        int outEnd = target.remaining();
+        byte[] in = input(end);
+        byte[] out = output(outEnd);
+        source.get(source.position(), in, 0, end);
+
+        int i = 0;
+        int o = 0;
+        while (i < end) {
+            int token = in[i++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int extra;
+                do {
+                    if (i >= end) {
+                        return false;
+                    }
+                    extra = in[i++] & 0xFF;
+                    literalLength += extra;
+                } while (extra == 255);
+            }
+            if (literalLength > end - i || literalLength > outEnd - o) {
+                return false;
+            }
+            System.arraycopy(in, i, out, o, literalLength);
+            i += literalLength;
+            o += literalLength;
+            if (i == end) {
+                break;
+            }
+
+            if (end - i < 2) {
+                return false;
+            }
+            int offset = (in[i] & 0xFF) | (in[i + 1] & 0xFF) << 8;
+            i += 2;
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int extra;
+                do {
+                    if (i >= end) {
+                        return false;
+                    }
+                    extra = in[i++] & 0xFF;
+                    matchLength += extra;
+                } while (extra == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (offset == 0 || offset > o || matchLength > outEnd - o) {
+                return false;
+            }
+            if (offset >= matchLength) {
+                System.arraycopy(out, o - offset, out, o, matchLength);
+                o += matchLength;
+            } else {
+                // the match overlaps the bytes it produces, copy byte by byte
+                for (int from = o - offset, to = o + matchLength; o < to; ) {
+                    out[o++] = out[from++];
+                }
+            }
+        }
+        if (o != outEnd) {
+            return false;
+        }
+        target.put(target.position(), out, 0, o);
+        return true;
+    }
+
+    private byte[] input(int size) {
+        if (input.length < size) {
+            input = new byte[size];
+        }
+        return input;
+    }
+
+    private byte[] output(int size) {
+        if (output.length < size) {
+            output = new byte[size];
+        }
+        return output;
+    }
+}
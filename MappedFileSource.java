@@ -0,0 +1,75 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view on a file that is memory mapped region by region, so the file never has to be copied to the heap.
+ * Files larger than one region (a single mapping is limited to 2 GB) are remapped on demand.
+ */
+public class MappedFileSource implements TransferSource {
+
+    private static final long REGION_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private long regionStart = 0;
+    private long regionEnd = 0;
+    private MappedByteBuffer region;
+    private ByteBuffer view;
+
+    public MappedFileSource(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns a buffer whose remaining bytes are the given range of the file. The returned buffer is reused
+     * by the next call, so it must be consumed (or its position reset) before asking for the next range.
+     */
+    @Override
+    public ByteBuffer slice(long position, int length) throws IOException {
+        if (view == null || position < regionStart || position + length > regionEnd) {
+            map(position);
+        }
+        int start = (int) (position - regionStart);
+        view.limit(start + length).position(start);
+        return view;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, count, target);
+    }
+
+    private void map(long position) throws IOException {
+        regionStart = position;
+        regionEnd = Math.min(size, position + REGION_SIZE);
+        region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+        view = region.duplicate();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
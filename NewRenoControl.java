@@ -0,0 +1,77 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+/**
+ * Loss based AIMD congestion control in the style of TCP NewReno (RFC 6582): slow start doubles the window every
+ * round trip until the slow start threshold, congestion avoidance adds one packet per round trip. A loss halves the
+ * window once per window of data; packets lost in the same window (sent before the recovery point) don't reduce it
+ * again. A timeout restarts with slow start from a single packet.
+ */
+public class NewRenoControl implements CongestionControl {
+
+    private static final int MIN_WINDOW = 2;
+    private static final int INITIAL_WINDOW = 10;
+
+    private final int maxWindow;
+    private int cwnd;
+    private int ssthresh;
+    // acknowledged packets counted towards the next increment in congestion avoidance
+    private int ackedInRound = 0;
+    // losses of packets before this sequence number belong to the current recovery
+    private int recoverySeq = -1;
+
+    public NewRenoControl(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.min(INITIAL_WINDOW, maxWindow);
+        this.ssthresh = maxWindow;
+    }
+
+    @Override
+    public int window() {
+        return cwnd;
+    }
+
+    @Override
+    public void onAck(int acked, long rttNanos) {
+        if (cwnd < ssthresh) {
+            cwnd = Math.min(cwnd + acked, ssthresh);
+            return;
+        }
+        ackedInRound += acked;
+        if (ackedInRound >= cwnd) {
+            ackedInRound -= cwnd;
+            cwnd = Math.min(cwnd + 1, maxWindow);
+        }
+    }
+
+    @Override
+    public void onLoss(int seq, int nextSeq) {
+        if (seq < recoverySeq) {
+            return;
+        }
+        recoverySeq = nextSeq;
+        ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+        cwnd = ssthresh;
+        ackedInRound = 0;
+    }
+
+    @Override
+    public void onTimeout() {
+        ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+        cwnd = 1;
+        ackedInRound = 0;
+    }
+
+    @Override
+    public String name() {
+        return "newreno";
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Checksum algorithms a transfer can negotiate in its SYN, for the checksum of every packet as well as for the digest
+ * of the whole file. The id is the byte sent in the SYN and the SYN-ACK.
+ * <p>
+ * CRC32C is the default: the JIT turns it into the SSE4.2 / ARMv8 CRC instructions and it detects more error patterns
+ * than CRC32. {@link XxHash32} is meant for platforms without those instructions, {@link #NONE} leaves integrity to
+ * the UDP checksum and the link layer and is only used if the receiver explicitly accepts it.
+ */
+public enum PacketChecksum {
+
+    NONE(0),
+    CRC32(1),
+    CRC32C(2),
+    XXHASH32(3);
+
+    final byte id;
+
+    PacketChecksum(int id) {
+        this.id = (byte) id;
+    }
+
+    /**
+     * @return A new, reset instance, to be reused for every packet of one codec.
+     */
+    Checksum create() {
+        switch (this) {
+            case CRC32:
+                return new CRC32();
+            case CRC32C:
+                return new CRC32C();
+            case XXHASH32:
+                return new XxHash32();
+            default:
+                return new Checksum() {
+                    @Override
+                    public void update(int b) {
+                    }
+
+                    @Override
+                    public void update(byte[] b, int off, int len) {
+                    }
+
+                    @Override
+                    public void update(ByteBuffer buffer) {
+                        buffer.position(buffer.limit());
+                    }
+
+                    @Override
+                    public long getValue() {
+                        return 0;
+                    }
+
+                    @Override
+                    public void reset() {
+                    }
+                };
+        }
+    }
+
+    /**
+     * @return The algorithm with the given id or null if it is unknown.
+     */
+    static PacketChecksum byId(byte id) {
+        for (PacketChecksum checksum : values()) {
+            if (checksum.id == id) {
+                return checksum;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name Name as in the system properties, case-insensitive, e.g. "crc32c".
+     */
+    static PacketChecksum byName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown checksum algorithm: " + name);
+        }
+    }
+
+    /**
+     * @return The algorithm set in the given system property or the default.
+     */
+    static PacketChecksum fromProperty(String property, PacketChecksum def) {
+        String name = System.getProperty(property);
+        return name == null ? def : byName(name);
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Encodes and decodes data packets and ACKs directly in a {@link ByteBuffer} using absolute gets and puts only.
+ * A codec is a flyweight: {@link #wrap(ByteBuffer)} points it at a received datagram, all getters read from there.
+ * Nothing is allocated per packet, so a codec must not be shared between threads.
+ * <p>
+ * Data packet: source port (2), destination port (2), [transfer id (4)], sequence (1 byte alternating bit or 4 byte
+ * sequence number), send-end-flag (1), payload length (2), checksum over header without checksum and payload (4),
+ * payload.
+ * <br>
+ * ACK: source port (2), destination port (2), [transfer id (4)], sequence (1 or 4), [SACK length (2), SACK bitmap],
+ * checksum over the preceding bytes (4).
+ * <br>
+ * The checksum is the lower 4 byte of the {@link PacketChecksum} the codec {@link #use uses}, CRC32 unless a session
+ * negotiated another one. SYNs, probes and their answers always use CRC32, because they are sent before or regardless
+ * of that negotiation.
+ * <br>
+ * Transfer id and SACK only exist in the Selective Repeat layout. The transfer id lets a receiver tell apart concurrent
+ * transfers. A Selective Repeat ACK is cumulative, its sequence number is the next one the receiver expects, and bit i
+ * of the SACK bitmap (least significant bit of byte 0 first) tells that packet {@code sequence + 1 + i} has been
+ * received as well. An alternating bit ACK with {@link #NAK} set in its sequence is negative: the receiver got a corrupt
+ * packet while it waited for the bit in the lowest position.
+ */
+public class PacketCodec {
+
+    public static final int ALTERNATING_BIT = 1;
+    public static final int SEQUENCE_NUMBER = 4;
+    // marks an alternating bit ACK as NAK, the expected bit stays in bit 0
+    public static final int NAK = 2;
+
+    private final int sequenceBytes;
+    private final int transferBytes;
+    private final int sequenceIndex;
+    private final int sackIndex;
+    final int flagIndex;
+    final int lengthIndex;
+    final int checksumIndex;
+    final int headerSize;
+    // size of an ACK without SACK bitmap
+    final int ackSize;
+
+    private PacketChecksum algorithm;
+    private Checksum function;
+    private ByteBuffer datagram;
+
+    /**
+     * @param sequenceBytes {@link #ALTERNATING_BIT} for the 12 byte header of the alternating bit protocol,
+     *                      {@link #SEQUENCE_NUMBER} for the 19 byte header of Selective Repeat.
+     */
+    public PacketCodec(int sequenceBytes) {
+        this(sequenceBytes, PacketChecksum.CRC32);
+    }
+
+    public PacketCodec(int sequenceBytes, PacketChecksum algorithm) {
+        this.sequenceBytes = sequenceBytes;
+        this.transferBytes = sequenceBytes == SEQUENCE_NUMBER ? 4 : 0;
+        this.sequenceIndex = 2 + 2 + transferBytes;
+        this.flagIndex = sequenceIndex + sequenceBytes;
+        this.lengthIndex = flagIndex + 1;
+        this.checksumIndex = lengthIndex + 2;
+        this.headerSize = checksumIndex + 4;
+        this.sackIndex = sequenceIndex + sequenceBytes;
+        this.ackSize = sackIndex + (transferBytes == 0 ? 0 : 2) + 4;
+        use(algorithm);
+    }
+
+    /**
+     * Switches the checksum of all packets encoded and checked from now on, e.g. to the one a session negotiated.
+     */
+    public PacketCodec use(PacketChecksum algorithm) {
+        if (algorithm != this.algorithm) {
+            this.algorithm = algorithm;
+            this.function = algorithm.create();
+        }
+        return this;
+    }
+
+    public PacketChecksum algorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Points the codec at a received datagram, which has to start at index 0 and end at the limit of the buffer.
+     */
+    public PacketCodec wrap(ByteBuffer datagram) {
+        this.datagram = datagram;
+        return this;
+    }
+
+    public int sourcePort() {
+        return datagram.getShort(0) & 0xFFFF;
+    }
+
+    public int destinationPort() {
+        return datagram.getShort(2) & 0xFFFF;
+    }
+
+    /**
+     * @return Transfer id of the wrapped datagram or ACK, always 0 for the alternating bit layout.
+     */
+    public int transferId() {
+        return transferBytes == 0 ? 0 : datagram.getInt(4);
+    }
+
+    public int sequence() {
+        return sequenceBytes == ALTERNATING_BIT ? datagram.get(sequenceIndex) : datagram.getInt(sequenceIndex);
+    }
+
+    public byte flag() {
+        return datagram.get(flagIndex);
+    }
+
+    public int payloadLength() {
+        return datagram.getShort(lengthIndex) & 0xFFFF;
+    }
+
+    public int checksum() {
+        return datagram.getInt(checksumIndex);
+    }
+
+    /**
+     * Sets position and limit of the wrapped datagram to the payload and returns it.
+     */
+    public ByteBuffer payload() {
+        datagram.limit(headerSize + payloadLength()).position(headerSize);
+        return datagram;
+    }
+
+    /**
+     * @return true if the datagram is too short for its header or payload length, or the checksum does not match.
+     */
+    public boolean isCorrupt() {
+        int received = datagram.limit();
+        if (received < headerSize || headerSize + payloadLength() > received) {
+            return true;
+        }
+        function.reset();
+        update(datagram, 0, checksumIndex);
+        update(datagram, headerSize, headerSize + payloadLength());
+        datagram.limit(received).position(0);
+        return checksum() != (int) function.getValue();
+    }
+
+    /**
+     * Writes all header fields except the checksum at the start of the given buffer.
+     */
+    public void encodeHeader(ByteBuffer header, int sourcePort, int destinationPort, int transferId, int sequence, byte flag, int payloadLength) {
+        putAddressing(header, sourcePort, destinationPort, transferId, sequence);
+        header.put(flagIndex, flag);
+        header.putShort(lengthIndex, (short) payloadLength);
+    }
+
+    /**
+     * Encodes a datagram whose payload has already been put behind the header, position and limit are set to the
+     * complete datagram afterwards.
+     */
+    public void encode(ByteBuffer datagram, int sourcePort, int destinationPort, int sequence, byte flag, int payloadLength) {
+        encodeHeader(datagram, sourcePort, destinationPort, 0, sequence, flag, payloadLength);
+        sign(datagram, headerSize + payloadLength, null);
+        datagram.limit(headerSize + payloadLength).position(0);
+    }
+
+    /**
+     * Computes and stores the checksum of a datagram that is sent as gather write of header and payload.
+     *
+     * @param header    Encoded header, optionally followed by the first part of the payload up to {@code headerEnd}.
+     * @param headerEnd End of the bytes inside {@code header} that belong to the datagram.
+     * @param payload   Remaining bytes of the payload or null, its position is left untouched.
+     */
+    public void sign(ByteBuffer header, int headerEnd, ByteBuffer payload) {
+        function.reset();
+        update(header, 0, checksumIndex);
+        update(header, headerSize, headerEnd);
+        if (payload != null) {
+            int position = payload.position();
+            function.update(payload);
+            payload.position(position);
+        }
+        header.putInt(checksumIndex, (int) function.getValue());
+        header.limit(headerEnd).position(0);
+    }
+
+    /**
+     * Encodes a complete ACK without SACK bitmap at the start of the given buffer, position and limit are set to the
+     * ACK afterwards.
+     */
+    public void encodeACK(ByteBuffer ack, int sourcePort, int destinationPort, int transferId, int sequence) {
+        encodeACK(ack, sourcePort, destinationPort, transferId, sequence, null, 0);
+    }
+
+    /**
+     * Encodes a complete cumulative ACK of the Selective Repeat layout, position and limit are set to the ACK afterwards.
+     *
+     * @param cumulative Next sequence number the receiver expects, all packets before it have been received.
+     * @param sack       Bitmap of received packets after {@code cumulative + 1}, bit i of word i / 64 stands for packet
+     *                   {@code cumulative + 1 + i}.
+     * @param sackBits   Number of bits of {@code sack} to send, rounded up to whole bytes.
+     */
+    public void encodeACK(ByteBuffer ack, int sourcePort, int destinationPort, int transferId, int cumulative, long[] sack, int sackBits) {
+        ack.clear();
+        putAddressing(ack, sourcePort, destinationPort, transferId, cumulative);
+        int size = ackSize;
+        if (transferBytes != 0) {
+            int sackBytes = (sackBits + 7) / 8;
+            ack.putShort(sackIndex, (short) sackBytes);
+            for (int i = 0; i < sackBytes; i++) {
+                ack.put(sackIndex + 2 + i, (byte) (sack[i / 8] >>> (8 * (i % 8))));
+            }
+            size += sackBytes;
+        }
+        function.reset();
+        update(ack, 0, size - 4);
+        ack.limit(size).position(0);
+        ack.putInt(size - 4, (int) function.getValue());
+    }
+
+    /**
+     * Checks a received ACK that starts at index 0 and ends at the limit of the buffer. The codec wraps the ACK
+     * afterwards, so e.g. {@link #transferId()} and {@link #isSelectivelyAcked(int)} can be read from it.
+     *
+     * @return The acknowledged sequence (alternating bit or cumulative sequence number) or -1 if the ACK is corrupt.
+     */
+    public int checkACK(ByteBuffer ack) {
+        wrap(ack);
+        int size = ack.limit();
+        if (size < ackSize || size != ackSize + sackBits() / 8) {
+            return -1;
+        }
+        function.reset();
+        update(ack, 0, size - 4);
+        ack.limit(size);
+        if (ack.getInt(size - 4) != (int) function.getValue()) {
+            return -1;
+        }
+        return sequence();
+    }
+
+    /**
+     * @return Number of bits in the SACK bitmap of the wrapped ACK, always 0 for the alternating bit layout.
+     */
+    public int sackBits() {
+        return transferBytes == 0 || datagram.limit() < sackIndex + 2 ? 0 : (datagram.getShort(sackIndex) & 0xFFFF) * 8;
+    }
+
+    /**
+     * @return true if the wrapped ACK reports packet {@code sequence() + 1 + index} as received.
+     */
+    public boolean isSelectivelyAcked(int index) {
+        return (datagram.get(sackIndex + 2 + index / 8) & (1 << (index % 8))) != 0;
+    }
+
+    private void putAddressing(ByteBuffer buffer, int sourcePort, int destinationPort, int transferId, int sequence) {
+        buffer.putShort(0, (short) sourcePort);
+        buffer.putShort(2, (short) destinationPort);
+        if (transferBytes != 0) {
+            buffer.putInt(4, transferId);
+        }
+        if (sequenceBytes == ALTERNATING_BIT) {
+            buffer.put(sequenceIndex, (byte) sequence);
+        } else {
+            buffer.putInt(sequenceIndex, sequence);
+        }
+    }
+
+    private void update(ByteBuffer buffer, int from, int to) {
+        buffer.limit(to).position(from);
+        function.update(buffer);
+    }
+}
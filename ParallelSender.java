@@ -0,0 +1,116 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Transmits one file over several Selective Repeat streams at once. The file is split into byte ranges of about equal
+ * size, every range is sent by its own thread over its own socket, so the transfer is no longer limited by what a
+ * single thread and port can push.
+ * <p>
+ * The SYN of every stream carries the range besides name and size of the file: a group id common to all streams,
+ * number of streams, offset, length and CRC32 of the range, see {@link SessionSetup}. The receiver writes every range
+ * at its offset into one output file, see {@link ReassembledFile}, and checks the CRC of every range before the file
+ * gets its final name.
+ */
+public class ParallelSender {
+
+    private static final int CRC_CHUNK = 1 << 20;
+
+    /**
+     * @param fileName Name of the file inside the src folder.
+     * @param ipTarget Address of the receiver.
+     * @param window   Maximum number of unacknowledged packets per stream.
+     * @param streams  Number of concurrent streams, reduced for files of less than one packet per stream.
+     */
+    public static void transmit(String fileName, String ipTarget, int window, int streams) throws IOException {
+        Path path = Paths.get("src/" + fileName);
+        long size = Files.size(path);
+        streams = (int) Math.max(1, Math.min(streams, size / FileSender.SIZE));
+        long rangeSize = (size + streams - 1) / streams;
+        int groupId = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getByName(ipTarget), FileSender.DESTINATION_PORT);
+
+        ExecutorService executor = Executors.newFixedThreadPool(streams);
+        List<Future<SelectiveRepeatSender>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < streams; i++) {
+            long offset = Math.min(size, i * rangeSize);
+            long length = Math.min(rangeSize, size - offset);
+            int count = streams;
+            results.add(executor.submit(() -> sendRange(path, fileName, target, window, groupId, count, offset, length)));
+        }
+        executor.shutdown();
+
+        int packetsSent = 0;
+        int retransmissions = 0;
+        int timeouts = 0;
+        try {
+            for (Future<SelectiveRepeatSender> result : results) {
+                SelectiveRepeatSender sender = result.get();
+                packetsSent += sender.packetsSent();
+                retransmissions += sender.retransmissions();
+                timeouts += sender.timeouts();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer interrupted", e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        long duration = System.nanoTime() - start;
+
+        FileSender.printStats(size, FileSender.calculateThroughput(duration, size), 0, 0, packetsSent);
+        System.out.println("Streams: " + streams + ", window size per stream: " + window);
+        System.out.println("Timeouts: " + timeouts);
+        System.out.println("Retransmissions: " + retransmissions);
+    }
+
+    private static SelectiveRepeatSender sendRange(Path path, String fileName, InetSocketAddress target, int window,
+                                                   int groupId, int streams, long offset, long length) throws IOException {
+        try (MappedFileSource file = new MappedFileSource(path);
+             DatagramChannel channel = DatagramChannel.open()) {
+            channel.bind(new InetSocketAddress(0));
+            channel.connect(target);
+
+            SessionSetup setup = new SessionSetup(fileName, file.size(), SelectiveRepeatSender.MAX_CHUNK_SIZE, window)
+                    .range(groupId, streams, offset, length, checksum(file, offset, length));
+            SelectiveRepeatSender sender = new SelectiveRepeatSender(channel, setup, file);
+            sender.transfer();
+            return sender;
+        }
+    }
+
+    /**
+     * @return Lower 4 byte of the CRC32 over the given range of the file.
+     */
+    static int checksum(MappedFileSource file, long offset, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        for (long done = 0; done < length; ) {
+            int chunk = (int) Math.min(CRC_CHUNK, length - done);
+            crc.update(file.slice(offset + done, chunk));
+            done += chunk;
+        }
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+/**
+ * Datagram sizes for a path to a receiver. The upper limit is the MTU of the local interface the path starts at,
+ * minus IP and UDP header: about 64 KB on loopback, 8972 bytes on a jumbo frame LAN, 1472 bytes on plain Ethernet.
+ * System property "datagram.size" overrides it.
+ * <p>
+ * Links further down the path may have a smaller MTU. Java can't set the don't fragment bit, so instead of relying on
+ * ICMP the sender probes: it sends padded probe packets of the {@link #candidates} sizes and takes the largest one the
+ * receiver answers (packetization layer path MTU discovery as in RFC 8899). A path that drops fragments or large
+ * datagrams thus ends up with a smaller size; a path that fragments and reassembles them is only noticed through the
+ * higher loss rate of larger datagrams.
+ * <p>
+ * A probe is a data packet with sequence number {@link #PROBE_SEQUENCE}, flag {@link #PROBE_FLAG} and a payload of
+ * zeros. The answer has the same sequence and flag and carries the size of the probe received (4).
+ */
+public class PathMtu {
+
+    static final byte PROBE_FLAG = 16;
+    static final int PROBE_SEQUENCE = -2;
+    static final int ANSWER_SIZE = 4;
+    // largest UDP payload of an IPv4 datagram
+    static final int MAX_DATAGRAM = 65507;
+    // what any IPv6 path (MTU 1280) carries without fragmentation, never probed below that
+    static final int MIN_DATAGRAM = 1280 - 40 - 8;
+    // what any IPv4 host reassembles, the smallest size that can be configured
+    private static final int MIN_CONFIGURED = 576 - 20 - 8;
+    private static final int UDP_HEADER = 8;
+
+    // loopback, half of it, jumbo frames, 4 KB pages, Ethernet
+    private static final int[] STEPS = {MAX_DATAGRAM, 32768, 16384, 9000 - 20 - UDP_HEADER, 4096, 1500 - 20 - UDP_HEADER};
+
+    /**
+     * @return Largest datagram to send to the target: "datagram.size" if set, otherwise what the MTU of the local
+     * interface towards the target allows, or {@link FileSender#SIZE} if that can't be found out.
+     */
+    static int limit(InetSocketAddress target) {
+        int configured = Integer.getInteger("datagram.size", 0);
+        if (configured > 0) {
+            return clamp(configured);
+        }
+        try (DatagramChannel route = DatagramChannel.open()) {
+            // connecting a datagram channel sends nothing, it just picks the local address of the route
+            route.connect(target);
+            InetAddress local = ((InetSocketAddress) route.getLocalAddress()).getAddress();
+            NetworkInterface device = NetworkInterface.getByInetAddress(local);
+            if (device != null && device.getMTU() > 0) {
+                return clamp(device.getMTU() - (local instanceof Inet6Address ? 40 : 20) - UDP_HEADER);
+            }
+        } catch (IOException e) {
+            // no route (yet), fall back to the default
+        }
+        return FileSender.SIZE;
+    }
+
+    /**
+     * @return The datagram sizes to probe in descending order: the limit itself and the common MTUs below it, down to
+     * {@link #MIN_DATAGRAM}. Just the limit if it isn't larger than that.
+     */
+    static int[] candidates(int limit) {
+        if (limit <= MIN_DATAGRAM) {
+            return new int[]{limit};
+        }
+        int[] sizes = new int[STEPS.length + 2];
+        int count = 0;
+        sizes[count++] = limit;
+        for (int step : STEPS) {
+            if (step < limit) {
+                sizes[count++] = step;
+            }
+        }
+        sizes[count++] = MIN_DATAGRAM;
+        return Arrays.copyOf(sizes, count);
+    }
+
+    private static int clamp(int size) {
+        return Math.max(MIN_CONFIGURED, Math.min(MAX_DATAGRAM, size));
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Output file of a transfer that a {@link ParallelSender} split over several streams. The sessions of all streams
+ * write into the same ".part" file at the offset of their range. Once the last stream has ended the file gets its
+ * final name, provided every range matched the CRC of its manifest and the ranges add up to the file size;
+ * otherwise it is thrown away.
+ */
+public class ReassembledFile {
+
+    private final Map<String, ReassembledFile> files;
+    private final String key;
+    private final String fileName;
+    private final long size;
+    private final int streams;
+    private final StreamingFileWriter output;
+
+    private int ended = 0;
+    private int intact = 0;
+    private long received = 0;
+
+    private ReassembledFile(Map<String, ReassembledFile> files, String key, String fileName, long size, int streams) throws IOException {
+        this.files = files;
+        this.key = key;
+        this.fileName = fileName;
+        this.size = size;
+        this.streams = streams;
+        this.output = new StreamingFileWriter(fileName, "parallel");
+        output.preallocate(size);
+    }
+
+    /**
+     * Returns the output file of a parallel transfer, the first stream that arrives creates it.
+     *
+     * @param files Output files of all parallel transfers in progress.
+     * @param key   Identifies the transfer, e.g. sender address and group id.
+     */
+    static ReassembledFile join(Map<String, ReassembledFile> files, String key, String fileName, long size, int streams) throws IOException {
+        try {
+            return files.computeIfAbsent(key, k -> {
+                try {
+                    return new ReassembledFile(files, k, fileName, size, streams);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer at the given position, may be called by the sessions of all streams
+     * at the same time.
+     */
+    void write(ByteBuffer data, long position) throws IOException {
+        output.write(data, position);
+    }
+
+    /**
+     * Reads back written bytes from the given position until the buffer is full.
+     */
+    void read(ByteBuffer data, long position) throws IOException {
+        output.read(data, position);
+    }
+
+    /**
+     * Reports the end of one stream.
+     *
+     * @param rangeIntact true if the range is complete and matches its CRC.
+     * @param bytes       Number of bytes of the range that have been written.
+     */
+    synchronized void rangeDone(boolean rangeIntact, long bytes) throws IOException {
+        ended++;
+        received += bytes;
+        if (rangeIntact) {
+            intact++;
+        }
+        if (ended < streams) {
+            return;
+        }
+        files.remove(key, this);
+        if (intact == streams && received == size) {
+            output.finish();
+            System.out.println("Reassembled " + fileName + " from " + streams + " streams, " + received + " bytes, all ranges intact");
+        } else {
+            output.abort();
+            System.out.println("Reassembly of " + fileName + " failed: " + intact + " of " + streams + " ranges intact, "
+                    + received + " of " + size + " bytes");
+        }
+    }
+}
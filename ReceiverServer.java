@@ -0,0 +1,447 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Receives any number of concurrent transfers on one UDP port. A single event loop thread reads all datagrams from a
+ * non-blocking channel and hands them to the session of their transfer, identified by sender address, sender port and
+ * transfer id. Every session has its own state machine and output file; delayed ACKs, the linger time after
+ * completion and the idle timeout of all sessions are timers on one {@link TimingWheel}, so a transfer costs no
+ * thread of its own and one thread serves thousands of them.
+ * <p>
+ * Only a datagram that opens a transfer starts a session: an intact SYN, path MTU probe or request for block
+ * signatures, checked against its CRC32 before the channel sees it. Everything else from an unknown sender, stray,
+ * corrupt or arriving after its session ended, is dropped, as are new transfers while "sessions.max" (system
+ * property, default 1024) sessions are running.
+ * <p>
+ * The loop drains up to "io.batch" datagrams (system property, default 32) per wakeup of its selector and hands them
+ * to their sessions straight from the receive buffer. Only datagrams the unreliable channel delays are copied, into
+ * a direct buffer of a {@link BufferPool} that grows up to "io.pool" MB (default 64), and passed back to the loop by
+ * the delivery thread of the channel; if the pool or the queue of a session is exhausted the datagram is dropped and
+ * the sender retransmits it. The ACKs a session sends are collected in a {@link DatagramBatch} and written in one
+ * burst once the datagrams of the wakeup have been handled. The largest datagram received is set by system property
+ * "datagram.max" (default 65507, the largest UDP datagram), senders are told to use no larger ones.
+ * <p>
+ * Sessions write their files on the loop thread, writes to the page cache are short enough not to hold up the others.
+ */
+public class ReceiverServer {
+
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+    private static final long LINGER = TimeUnit.SECONDS.toNanos(1);
+    // delayed datagrams waiting for the loop, per session
+    private static final int QUEUE_SIZE = 1024;
+    // sessions with delayed datagrams waiting for the loop
+    private static final int READY_SIZE = 1 << 16;
+    // room for a window of the largest datagrams, the system caps it at its maximum (net.core.rmem_max on Linux)
+    private static final int SOCKET_BUFFER = 8 << 20;
+    // bytes of ACKs a session collects before they are written
+    private static final int BATCH_BYTES = 16 << 10;
+    private static final ByteBuffer LOST = ByteBuffer.allocate(0);
+
+    private final int port;
+    private final String mode;
+    private final int window;
+    private final int maxDatagram = Math.max(PathMtu.MIN_DATAGRAM, Math.min(PathMtu.MAX_DATAGRAM,
+            Integer.getInteger("datagram.max", PathMtu.MAX_DATAGRAM)));
+    private final int batch = Math.max(1, Integer.getInteger("io.batch", 32));
+    private final int maxSessions = Math.max(1, Integer.getInteger("sessions.max", 1024));
+    private final BufferPool pool = BufferPool.ofBytes(maxDatagram, Long.getLong("io.pool", 64) << 20);
+    private final UnreliableChannel channel;
+    private final Map<SessionKey, Transfer> sessions = new HashMap<>();
+    private final Map<String, ReassembledFile> assemblies = new ConcurrentHashMap<>();
+    private final TimingWheel timers = new TimingWheel();
+    // sessions whose timer fired during the current advance of the wheel
+    private final List<Transfer> due = new ArrayList<>();
+    // sessions that sent something during the current wakeup
+    private final List<Transfer> flush = new ArrayList<>();
+    private final BlockingQueue<Transfer> ready = new ArrayBlockingQueue<>(READY_SIZE);
+    private volatile DatagramChannel socket;
+    private volatile Selector selector;
+    private volatile Thread loop;
+    private volatile boolean closed = false;
+
+    /**
+     * Simulates the unreliable channel configured by system properties, see {@link UnreliableChannel#fromProperties},
+     * by default with 10 % loss, 5 % duplication and 5 % corruption.
+     *
+     * @param port   UDP port to listen on.
+     * @param mode   "abp" for the Alternating-Bit-Protocol, "sr" for Selective Repeat.
+     * @param window Largest receive window of Selective Repeat sessions, senders may ask for a smaller one.
+     */
+    public ReceiverServer(int port, String mode, int window) {
+        this(port, mode, window, UnreliableChannel.fromProperties(0.1, 0.05, 0.05));
+    }
+
+    /**
+     * @param pLose Probability of a packet to get lost in the unreliable channel.
+     * @param pDup  Probability of a packet to get duplicated.
+     * @param pMan  Probability of a packet to get corrupted.
+     */
+    public ReceiverServer(int port, String mode, int window, double pLose, double pDup, double pMan) {
+        this(port, mode, window, new UnreliableChannel(Long.getLong("channel.seed", System.nanoTime()))
+                .loss(pLose).duplication(pDup).corruption(pMan));
+    }
+
+    /**
+     * @param channel Channel all received datagrams pass before they reach their session.
+     */
+    public ReceiverServer(int port, String mode, int window, UnreliableChannel channel) {
+        this.port = port;
+        this.mode = mode;
+        this.window = window;
+        this.channel = channel;
+    }
+
+    /**
+     * Serves transfers until no datagram arrived for 60 seconds and all sessions have ended, or until {@link #close()}.
+     */
+    public void serve() throws IOException {
+        loop = Thread.currentThread();
+        socket = DatagramChannel.open().bind(new InetSocketAddress(port));
+        selector = Selector.open();
+        socket.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+        socket.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+        socket.configureBlocking(false);
+        socket.register(selector, SelectionKey.OP_READ);
+        ByteBuffer datagram = ByteBuffer.allocateDirect(maxDatagram);
+        PacketCodec codec = new PacketCodec(mode.equals("sr") ? PacketCodec.SEQUENCE_NUMBER : PacketCodec.ALTERNATING_BIT);
+        System.out.println("Channel seed: " + channel.seed());
+
+        long lastReceived = System.nanoTime();
+        try {
+            while (!closed) {
+                long now = System.nanoTime();
+                if (sessions.isEmpty() && now - lastReceived >= IDLE_TIMEOUT) {
+                    break;
+                }
+                long deadline = Math.min(timers.nextDeadline(), lastReceived + IDLE_TIMEOUT);
+                // select only waits whole milliseconds, a timer due within the next one fires up to a millisecond late
+                int selected = deadline - now > 0 ? selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now)))
+                        : selector.selectNow();
+                if (selected > 0) {
+                    selector.selectedKeys().clear();
+                    for (int received = 0; received < batch; received++) {
+                        datagram.clear();
+                        SocketAddress source = socket.receive(datagram);
+                        if (source == null) {
+                            break;
+                        }
+                        lastReceived = System.nanoTime();
+                        datagram.flip();
+                        if (datagram.remaining() < codec.headerSize) {
+                            // can't belong to any transfer, e.g. the empty datagram of a sender closing its socket
+                            continue;
+                        }
+                        InetSocketAddress sender = (InetSocketAddress) source;
+                        SessionKey key = new SessionKey(sender.getAddress(), sender.getPort(), codec.wrap(datagram).transferId());
+                        Transfer transfer = sessions.get(key);
+                        if (transfer == null) {
+                            if (sessions.size() >= maxSessions || !opensTransfer(codec)) {
+                                continue;
+                            }
+                            transfer = start(key);
+                        }
+                        channel.transmit(datagram, transfer);
+                    }
+                }
+                for (Transfer transfer; (transfer = ready.poll()) != null; ) {
+                    transfer.drain();
+                }
+                expireTimers();
+                for (Transfer transfer : flush) {
+                    transfer.flush();
+                }
+                flush.clear();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                throw e;
+            }
+        } finally {
+            System.out.println(channel.summary());
+            for (Transfer transfer : new ArrayList<>(sessions.values())) {
+                transfer.end();
+            }
+            selector.close();
+            socket.close();
+        }
+    }
+
+    /**
+     * Stops serving, transfers that haven't completed are aborted.
+     */
+    public void close() {
+        closed = true;
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    /**
+     * @param codec Codec with CRC32, wrapped around the datagram of an unknown sender.
+     * @return true if the datagram is an intact packet that opens a transfer.
+     */
+    private boolean opensTransfer(PacketCodec codec) {
+        if (codec.isCorrupt()) {
+            return false;
+        }
+        int sequence = codec.sequence();
+        byte flag = codec.flag();
+        if (!mode.equals("sr")) {
+            return sequence == 0 && (flag & SessionSetup.SYN_FLAG) != 0;
+        }
+        return sequence == SessionSetup.SYN_SEQUENCE && (flag & SessionSetup.SYN_FLAG) != 0
+                || sequence == PathMtu.PROBE_SEQUENCE && (flag & PathMtu.PROBE_FLAG) != 0
+                || sequence == BlockSignatures.SIGNATURE_SEQUENCE && (flag & BlockSignatures.FLAG) != 0;
+    }
+
+    private Transfer start(SessionKey key) {
+        TransferMetrics metrics = TransferMetrics.open(mode + " from " + key.address.getHostAddress() + ":" + key.port);
+        DatagramBatch out = new DatagramBatch(socket, port, new InetSocketAddress(key.address, key.port), batch, BATCH_BYTES,
+                metrics.sendDropped);
+        ReceiverSession session = mode.equals("sr")
+                ? new SelectiveRepeatReceiver(out, window, maxDatagram - SelectiveRepeatSender.HEADER_SIZE, key.address,
+                key.transferId, assemblies, metrics)
+                : new AlternatingBitSession(out, maxDatagram - FileSender.HEADER_SIZE, metrics);
+        Transfer transfer = new Transfer(key, session, out, metrics);
+        sessions.put(key, transfer);
+        return transfer;
+    }
+
+    private void expireTimers() {
+        timers.advance(System.nanoTime());
+        for (Transfer transfer : due) {
+            transfer.expired();
+        }
+        due.clear();
+    }
+
+    /**
+     * Feeds the datagrams of one transfer into its session on the event loop. The session ends after it has lingered
+     * for a second after completion or after the sender has been silent for 60 seconds.
+     * <p>
+     * Datagrams lost in the unreliable channel are passed on as empty buffers, so the session can count them. The
+     * channel may deliver delayed datagrams from its own thread, those are queued until the loop picks them up.
+     */
+    private class Transfer implements UnreliableChannel.Sink {
+        private final SessionKey key;
+        private final ReceiverSession session;
+        private final DatagramBatch out;
+        private final TransferMetrics metrics;
+        private final TimingWheel.Timer timer = new TimingWheel.Timer(() -> due.add(this));
+        private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        // on the ready queue of the server
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private long lastReceived = System.nanoTime();
+        // on the flush list of the server
+        private boolean sent = false;
+        private volatile boolean ended = false;
+
+        Transfer(SessionKey key, ReceiverSession session, DatagramBatch out, TransferMetrics metrics) {
+            this.key = key;
+            this.session = session;
+            this.out = out;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void deliver(ByteBuffer datagram) throws IOException {
+            if (Thread.currentThread() == loop) {
+                // straight from the receive buffer, which the channel passes on again if it duplicates the datagram
+                int limit = datagram.limit();
+                handle(datagram);
+                datagram.limit(limit).position(0);
+                return;
+            }
+            ByteBuffer buffer = pool.take();
+            if (buffer == null) {
+                return;
+            }
+            buffer.put(datagram).flip();
+            enqueue(buffer);
+        }
+
+        @Override
+        public void lost() {
+            if (Thread.currentThread() == loop) {
+                handle(LOST);
+                return;
+            }
+            ByteBuffer buffer = pool.take();
+            if (buffer != null) {
+                buffer.flip();
+                enqueue(buffer);
+            }
+        }
+
+        private void enqueue(ByteBuffer buffer) {
+            if (ended || !queue.offer(buffer)) {
+                pool.release(buffer);
+                return;
+            }
+            if (queued.compareAndSet(false, true)) {
+                if (ready.offer(this)) {
+                    selector.wakeup();
+                } else {
+                    queued.set(false);
+                }
+            }
+        }
+
+        /**
+         * Handles the delayed datagrams the channel has queued.
+         */
+        void drain() {
+            queued.set(false);
+            for (ByteBuffer buffer; (buffer = queue.poll()) != null; ) {
+                handle(buffer);
+                pool.release(buffer);
+            }
+        }
+
+        private void handle(ByteBuffer datagram) {
+            if (ended) {
+                return;
+            }
+            lastReceived = System.nanoTime();
+            try {
+                session.handle(datagram);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            markSent();
+            schedule();
+        }
+
+        /**
+         * Runs the timer of the session if it is due, ends the session if the sender has been silent for too long.
+         */
+        void expired() {
+            long now = System.nanoTime();
+            try {
+                if (session.timer() - now <= 0) {
+                    session.onTimer();
+                    markSent();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            if (now - lastReceived >= silence()) {
+                end();
+            } else {
+                schedule();
+            }
+        }
+
+        private void markSent() {
+            if (!sent) {
+                sent = true;
+                flush.add(this);
+            }
+        }
+
+        void flush() {
+            sent = false;
+            try {
+                out.flush();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private long silence() {
+            return session.isFinished() ? LINGER : IDLE_TIMEOUT;
+        }
+
+        private void schedule() {
+            timers.schedule(timer, Math.min(session.timer(), lastReceived + silence()));
+        }
+
+        /**
+         * Takes the session off the loop, aborting it if it hasn't completed. A failing session is ended without
+         * affecting the others.
+         */
+        void end() {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            timers.cancel(timer);
+            sessions.remove(key, this);
+            try {
+                if (!session.isFinished()) {
+                    session.abort();
+                }
+                out.flush();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                metrics.close();
+                for (ByteBuffer buffer; (buffer = queue.poll()) != null; ) {
+                    pool.release(buffer);
+                }
+            }
+        }
+
+        private void fail(Exception e) {
+            e.printStackTrace();
+            end();
+        }
+    }
+
+    private static final class SessionKey {
+        private final InetAddress address;
+        private final int port;
+        private final int transferId;
+
+        SessionKey(InetAddress address, int port, int transferId) {
+            this.address = address;
+            this.port = port;
+            this.transferId = transferId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) o;
+            return port == other.port && transferId == other.transferId && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(address, port, transferId);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * State of a single transfer served by the {@link ReceiverServer}. A session is only ever driven by one thread at a time,
+ * so implementations keep their state in plain fields.
+ */
+public interface ReceiverSession {
+
+    /**
+     * Handles one datagram of this transfer. The received bytes are located between index 0 and the limit of the buffer,
+     * a datagram of length 0 marks a packet that got lost in the unreliable channel.
+     */
+    void handle(ByteBuffer datagram) throws IOException;
+
+    /**
+     * @return true once the file has been received completely and written to its final name.
+     */
+    boolean isFinished();
+
+    /**
+     * Throws away everything received so far, called if the sender went silent before the transfer was complete.
+     */
+    void abort() throws IOException;
+
+    /**
+     * @return {@link System#nanoTime()} at which {@link #onTimer()} has to be called, {@link Long#MAX_VALUE} if no
+     * timer is pending.
+     */
+    default long timer() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Called once the time returned by {@link #timer()} has passed without another datagram arriving.
+     */
+    default void onTimer() throws IOException {
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+/**
+ * The weak block checksum of rsync, two 16 bit Adler-style sums over a window of bytes: a is the sum of the bytes, b
+ * the sum of the prefix sums a. Moving the window by one byte only takes the byte that leaves and the one that enters,
+ * so a sender can test every offset of its file against the blocks of the receiver's copy in constant time per byte.
+ * Collisions are expected, a match is confirmed with the strong checksum, see {@link BlockSignatures}.
+ */
+public class RollingChecksum {
+
+    private int a;
+    private int b;
+    private int length;
+
+    /**
+     * Starts a new window over {@code length} bytes of {@code data}.
+     */
+    void reset(byte[] data, int offset, int length) {
+        int sumA = 0;
+        int sumB = 0;
+        for (int i = 0; i < length; i++) {
+            sumA += data[offset + i] & 0xFF;
+            sumB += sumA;
+        }
+        this.a = sumA & 0xFFFF;
+        this.b = sumB & 0xFFFF;
+        this.length = length;
+    }
+
+    /**
+     * Moves the window one byte on.
+     *
+     * @param out First byte of the old window.
+     * @param in  Byte behind the old window, now its last one.
+     */
+    void roll(byte out, byte in) {
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * (out & 0xFF) + a) & 0xFFFF;
+    }
+
+    int value() {
+        return b << 16 | a;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+/**
+ * Retransmission timeout computed from measured round trip times (Jacobson/Karels, RFC 6298):
+ * SRTT and RTTVAR are smoothed with gains 1/8 and 1/4, RTO = SRTT + 4 * RTTVAR, clamped to [min RTO, max RTO].
+ * Every timeout doubles the RTO until the next valid sample arrives.
+ * <p>
+ * Following Karn's rule the caller must only pass samples of packets that have not been retransmitted, because their
+ * ACK can't be matched to a specific transmission.
+ * <p>
+ * Bounds are read from the system properties "rto.min" and "rto.max" (milliseconds, default 5 and 3000); until the
+ * first sample the RTO is "rto.initial" (default 250 ms, the fixed timeout used before).
+ */
+public class RttEstimator {
+
+    private static final long MILLI = 1_000_000L;
+    private static final long GRANULARITY = MILLI;
+
+    private final long minRto;
+    private final long maxRto;
+    private final LatencyHistogram samples = new LatencyHistogram();
+
+    private long srtt = -1;
+    private long rttvar = 0;
+    private long rto;
+
+    public RttEstimator() {
+        this(Long.getLong("rto.initial", 250), Long.getLong("rto.min", 5), Long.getLong("rto.max", 3000));
+    }
+
+    /**
+     * @param initialRtoMillis RTO until the first sample.
+     * @param minRtoMillis     Lower bound of the RTO.
+     * @param maxRtoMillis     Upper bound of the RTO, also for the exponential backoff.
+     */
+    public RttEstimator(long initialRtoMillis, long minRtoMillis, long maxRtoMillis) {
+        this.minRto = minRtoMillis * MILLI;
+        this.maxRto = maxRtoMillis * MILLI;
+        this.rto = clamp(initialRtoMillis * MILLI);
+    }
+
+    /**
+     * Adds a round trip time sample of a packet that was sent exactly once.
+     */
+    public void sample(long rttNanos) {
+        samples.record(rttNanos / 1000);
+        if (srtt < 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4;
+            srtt = (7 * srtt + rttNanos) / 8;
+        }
+        rto = clamp(srtt + Math.max(GRANULARITY, 4 * rttvar));
+    }
+
+    /**
+     * Doubles the RTO after a retransmission timeout.
+     */
+    public void backoff() {
+        rto = clamp(rto * 2);
+    }
+
+    public long rtoNanos() {
+        return rto;
+    }
+
+    /**
+     * @return Smoothed round trip time or -1 before the first sample.
+     */
+    public long srttNanos() {
+        return srtt;
+    }
+
+    /**
+     * @return Lines for the end of transfer statistics.
+     */
+    public String summary() {
+        return "RTT (us):\t\t" + samples.summary("") +
+                "\nSRTT / RTO (ms):\t" + (srtt < 0 ? "-" : String.format("%.3f", srtt / (double) MILLI)) + " / " + String.format("%.3f", rto / (double) MILLI);
+    }
+
+    private long clamp(long value) {
+        return Math.min(maxRto, Math.max(minRto, value));
+    }
+}
@@ -0,0 +1,811 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Receiver side of a single Selective Repeat transfer. Packets arriving ahead of the window base are kept in a reorder
+ * buffer until the gap is filled, packets arriving in order are written straight from the receive buffer.
+ * <p>
+ * The transfer starts with a SYN, see {@link SessionSetup}. The session checks name and size of the file, answers
+ * with the window and chunk size it accepts, at most its own window and the largest chunk the server receives, and
+ * only then allocates its buffers and the output file. Data packets before the SYN are ignored. Path MTU probes
+ * ({@link PathMtu}) are answered at any time. SYN, probes and their answers carry a CRC32, data packets and ACKs
+ * the checksum negotiated in the SYN-ACK.
+ * <p>
+ * If the SYN asks for a file digest, the session computes it over the payloads in sequence order while writing them.
+ * Once all data has arrived it waits for the digest of the sender before the file is completed, and discards the file
+ * if they differ. A resumed transfer only digests the chunks sent in this session.
+ * <p>
+ * Compressed chunks ({@link ChunkCompression}) are decompressed right after the checksum check, reorder buffer, parity
+ * repair, digest and output only ever see the data of the file.
+ * <p>
+ * ACKs are cumulative and carry a SACK bitmap of the buffered packets, see {@link PacketCodec}. In order packets are
+ * acknowledged in batches: after every "ack.every" packets (system property, default 2) or "ack.delay" microseconds
+ * (default 500) after the first unacknowledged one, whatever comes first. Out of order packets, duplicates, packets
+ * filling a gap and the last packet are acknowledged right away, so the sender learns about losses without delay.
+ * <p>
+ * Once the file is complete the session keeps acknowledging retransmissions as long as the {@link ReceiverServer}
+ * lets it linger, otherwise a lost final ACK would leave the sender retransmitting forever.
+ * <p>
+ * A whole file transfer can be resumed: the file is written to a part file with a fixed name and the received chunks
+ * are recorded in a {@link ChunkBitmap} next to it, saved every "resume.checkpoint" milliseconds (system property,
+ * default 1000) and when the transfer gets interrupted. The SYN-ACK of the next transfer of the same file only asks
+ * for the chunks that are still missing.
+ * <p>
+ * A whole file transfer can also be a delta against the file an earlier transfer left: the session answers the
+ * signatures of its blocks and copies the blocks the sender refers to, see {@link BlockSignatures}. Chunks covered
+ * completely count as received, the SYN-ACK only asks for the others.
+ * <p>
+ * A {@link FileBatch} is received like a single file, manifest and contents of all its files into one part file, and
+ * unpacked into a directory once it is complete.
+ * <p>
+ * If the SYN announces a byte range of a {@link ParallelSender} transfer, the session writes it at its offset into the
+ * {@link ReassembledFile} shared by all streams.
+ */
+public class SelectiveRepeatReceiver implements ReceiverSession {
+
+    private static final Path DIRECTORY = Paths.get("src");
+
+    private final DatagramBatch out;
+    private final int maxWindow;
+    private final int maxChunkSize;
+    private final InetAddress ipSender;
+    private final int transferId;
+    private final int ackEvery = Integer.getInteger("ack.every", 2);
+    private final long ackDelay = Long.getLong("ack.delay", 500) * 1000;
+    private final long checkpointInterval = Long.getLong("resume.checkpoint", 1000) * 1_000_000L;
+    private final PacketCodec codec = new PacketCodec(PacketCodec.SEQUENCE_NUMBER);
+    private final PacketCodec control = new PacketCodec(PacketCodec.SEQUENCE_NUMBER);
+    private final Map<String, ReassembledFile> assemblies;
+
+    // set up by the SYN
+    private SessionSetup setup;
+    private byte status;
+    private int window;
+    private int chunkSize;
+    private ByteBuffer ack;
+    private long[] sack;
+    private ByteBuffer answer;
+    private ByteBuffer probeAnswer;
+    private ByteBuffer digestAnswer;
+    // rebuilt packet and other packets of its parity group read back from the output
+    private ByteBuffer recovered;
+    private ByteBuffer readBack;
+    // compression the sender announced, null without
+    private ChunkCompression.Compressor compressor;
+    private ByteBuffer unpacked;
+    // delta transfer: the earlier copy of the file, null without, and the bytes of every chunk copied from it so far
+    private boolean deltaRequested = false;
+    private boolean deltaDone = false;
+    private FileChannel basis;
+    private long basisLength;
+    private int blockSize;
+    private int[] copied;
+    private int copiesApplied = 0;
+    private long copyEnd = 0;
+    private long copiedBytes = 0;
+    private ByteBuffer signatureAnswer;
+    private int signatureFirst = -1;
+    private ByteBuffer copyAnswer;
+
+    // reorder buffer, one preallocated slot per window position (sequence number modulo window)
+    private ByteBuffer[] buffered;
+    private boolean[] received;
+
+    private int base = 0;
+    private int lastSeq = -1;
+    private boolean finished = false;
+    // all data written, waiting for the digest of the sender
+    private boolean complete = false;
+    private Checksum fileDigest;
+    private byte digestResult = -1;
+    private StreamingFileWriter output;
+    // chunks the sender transmits, sequence number i is the i-th chunk of these ranges
+    private ChunkBitmap.Ranges missing;
+    private ChunkBitmap bitmap;
+    private Path bitmapPath;
+    private long nextCheckpoint = 0;
+    private ReassembledFile assembly;
+    private final CRC32 rangeCrc = new CRC32();
+    private long written = 0;
+    private long start = 0;
+    private int unacked = 0;
+    // arrival of the first packet the next ACK acknowledges, 0 if all are acknowledged
+    private long unackedSince = 0;
+    private long ackDue = Long.MAX_VALUE;
+
+    private final TransferMetrics metrics;
+
+    /**
+     * @param out          Datagrams towards the sender.
+     * @param maxWindow    Largest receive window accepted, the sender may ask for a smaller one.
+     * @param maxChunkSize Largest chunk accepted, the payload of the largest datagram the server receives.
+     * @param assemblies   Output files of the parallel transfers in progress, shared by all sessions of the server.
+     * @param metrics      Counters of the session, closed by the server.
+     */
+    SelectiveRepeatReceiver(DatagramBatch out, int maxWindow, int maxChunkSize, InetAddress ipSender, int transferId,
+                            Map<String, ReassembledFile> assemblies, TransferMetrics metrics) {
+        this.out = out;
+        this.maxWindow = maxWindow;
+        this.maxChunkSize = maxChunkSize;
+        this.ipSender = ipSender;
+        this.transferId = transferId;
+        this.assemblies = assemblies;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(ByteBuffer datagram) throws IOException {
+        if (start == 0) {
+            start = System.nanoTime();
+        }
+        if (datagram.limit() == 0) {
+            metrics.lost.increment();
+            return;
+        }
+        // control packets have negative sequence numbers and always carry a CRC32
+        int seq = datagram.limit() < codec.headerSize ? 0 : codec.wrap(datagram).sequence();
+        if ((seq < 0 ? control : codec).wrap(datagram).isCorrupt()) {
+            metrics.corrupt.increment();
+            return;
+        }
+
+        if (seq == PathMtu.PROBE_SEQUENCE && (control.flag() & PathMtu.PROBE_FLAG) != 0) {
+            answerProbe(datagram.limit());
+            return;
+        }
+        if (seq == SessionSetup.SYN_SEQUENCE && (control.flag() & SessionSetup.SYN_FLAG) != 0) {
+            answerSyn(control.payload());
+            return;
+        }
+        if (seq == SessionSetup.DIGEST_SEQUENCE && (control.flag() & SessionSetup.DIGEST_FLAG) != 0) {
+            answerDigest(control.payload());
+            return;
+        }
+        if (seq == BlockSignatures.SIGNATURE_SEQUENCE && (control.flag() & BlockSignatures.FLAG) != 0) {
+            answerSignatures(control.payload());
+            return;
+        }
+        if (seq == BlockSignatures.COPY_SEQUENCE && (control.flag() & BlockSignatures.FLAG) != 0) {
+            applyCopies(control.payload());
+            return;
+        }
+        if (setup == null || status != SessionSetup.ACCEPTED) {
+            // no accepted SYN yet
+            return;
+        }
+        if ((codec.flag() & XorParity.FLAG) != 0) {
+            repair(seq, codec.payload());
+            return;
+        }
+        if (seq < base - window || seq >= base + window) {
+            // neither inside the window nor an already delivered packet whose ACK got lost
+            return;
+        }
+
+        int slot = seq % window;
+        if (seq < base || received[slot]) {
+            // the sender didn't get our ACK
+            metrics.duplicates.increment();
+            sendACK();
+            return;
+        }
+        ByteBuffer payload = codec.payload();
+        if ((codec.flag() & ChunkCompression.FLAG) != 0) {
+            payload = decompress(seq, payload);
+            if (payload == null) {
+                metrics.corrupt.increment();
+                return;
+            }
+        }
+        receive(seq, payload, (codec.flag() & FileSender.setFlag(2)) != 0);
+    }
+
+    /**
+     * @return The chunk, valid until the next call, or null if it can't be decompressed to its length.
+     */
+    private ByteBuffer decompress(int seq, ByteBuffer packed) {
+        if (compressor == null) {
+            return null;
+        }
+        if (unpacked == null) {
+            unpacked = ByteBuffer.allocate(chunkSize);
+        }
+        unpacked.clear().limit(chunkLength(seq));
+        return compressor.decompress(packed, unpacked) ? unpacked : null;
+    }
+
+    /**
+     * Takes a new packet inside the window, received or rebuilt from parity, and acknowledges it.
+     *
+     * @param last true for the last packet of the transfer.
+     */
+    private void receive(int seq, ByteBuffer payload, boolean last) throws IOException {
+        if (last) {
+            lastSeq = seq;
+        }
+        metrics.packetsReceived.increment();
+        if (unackedSince == 0) {
+            unackedSince = System.nanoTime();
+        }
+
+        int slot = seq % window;
+        boolean inOrder = seq == base;
+        if (inOrder) {
+            write(seq, payload);
+            base++;
+        } else {
+            metrics.outOfOrder.increment();
+            buffered[slot].clear();
+            buffered[slot].put(payload).flip();
+            received[slot] = true;
+        }
+        int delivered = base;
+        deliver();
+
+        if (lastSeq >= 0 && base > lastSeq) {
+            sendACK();
+            complete();
+        } else if (!inOrder || base != delivered || ++unacked >= ackEvery) {
+            sendACK();
+        } else if (ackDue == Long.MAX_VALUE) {
+            ackDue = System.nanoTime() + ackDelay;
+        }
+    }
+
+    /**
+     * Rebuilds the packet of a parity group if it is the only one missing: the XOR of the parity with all other
+     * packets of the group, taken from the reorder buffer or read back from the output. With more than one missing the
+     * parity is useless and dropped, see {@link XorParity}.
+     *
+     * @param first  Sequence number of the first packet of the group.
+     * @param parity Group size and XOR of the payloads.
+     */
+    private void repair(int first, ByteBuffer parity) throws IOException {
+        if (finished || complete || parity.remaining() < XorParity.PREFIX) {
+            return;
+        }
+        int count = parity.getShort() & 0xFFFF;
+        if (count == 0 || first + count > missing.chunks() || first + count > base + window) {
+            return;
+        }
+        int lost = -1;
+        for (int seq = Math.max(first, base); seq < first + count; seq++) {
+            if (!received[seq % window]) {
+                if (lost >= 0) {
+                    return;
+                }
+                lost = seq;
+            }
+        }
+        if (lost < 0 || parity.remaining() < chunkLength(lost) || parity.remaining() > chunkSize) {
+            return;
+        }
+
+        if (recovered == null) {
+            recovered = ByteBuffer.allocate(chunkSize);
+            readBack = ByteBuffer.allocate(chunkSize);
+        }
+        recovered.clear();
+        recovered.put(parity).flip();
+        for (int seq = first; seq < first + count; seq++) {
+            if (seq == lost) {
+                continue;
+            }
+            ByteBuffer member;
+            if (seq >= base) {
+                member = buffered[seq % window];
+            } else {
+                readBack.clear().limit(chunkLength(seq));
+                long position = missing.chunk(seq) * (long) chunkSize;
+                if (assembly != null) {
+                    assembly.read(readBack, setup.rangeOffset + position);
+                } else {
+                    output.read(readBack, position);
+                }
+                member = readBack.flip();
+            }
+            XorParity.xor(recovered, 0, member, 0, member.limit());
+        }
+        recovered.limit(chunkLength(lost)).position(0);
+        metrics.recovered.increment();
+        receive(lost, recovered, lost == missing.chunks() - 1);
+    }
+
+    /**
+     * @return Payload length of the packet with the given sequence number, the chunk size for all but the last chunk.
+     */
+    private int chunkLength(int seq) {
+        return (int) Math.min(chunkSize, setup.rangeLength - missing.chunk(seq) * (long) chunkSize);
+    }
+
+    @Override
+    public long timer() {
+        return ackDue;
+    }
+
+    @Override
+    public void onTimer() throws IOException {
+        if (unacked > 0) {
+            sendACK();
+        }
+        ackDue = Long.MAX_VALUE;
+    }
+
+    private void answerProbe(int size) throws IOException {
+        if (probeAnswer == null) {
+            probeAnswer = ByteBuffer.allocate(SelectiveRepeatSender.HEADER_SIZE + PathMtu.ANSWER_SIZE);
+        }
+        probeAnswer.clear();
+        probeAnswer.putInt(SelectiveRepeatSender.HEADER_SIZE, size);
+        control.encodeHeader(probeAnswer, out.localPort(), out.remotePort(), transferId, PathMtu.PROBE_SEQUENCE,
+                PathMtu.PROBE_FLAG, PathMtu.ANSWER_SIZE);
+        control.sign(probeAnswer, probeAnswer.capacity(), null);
+        out.add(probeAnswer);
+    }
+
+    /**
+     * Sets the session up with the first SYN and answers it and every repetition with the requested page of missing
+     * ranges. The transfer is fixed by the first SYN, repetitions only ask for further pages.
+     */
+    private void answerSyn(ByteBuffer syn) throws IOException {
+        int from = syn.getInt();
+        if (setup == null) {
+            SessionSetup requested = SessionSetup.readSyn(syn);
+            if (requested == null) {
+                return;
+            }
+            accept(requested);
+        }
+        if (from < 0 || from > missing.size()) {
+            return;
+        }
+
+        if (answer == null) {
+            // a page is no larger than a data packet, which is known to make it to the sender
+            int capacity = Math.max(chunkSize, SessionSetup.ANSWER_SIZE + SessionSetup.RANGE_SIZE);
+            answer = ByteBuffer.allocate(SelectiveRepeatSender.HEADER_SIZE + capacity);
+        }
+        int count = Math.min(missing.size() - from, (answer.capacity() - SelectiveRepeatSender.HEADER_SIZE - SessionSetup.ANSWER_SIZE) / SessionSetup.RANGE_SIZE);
+        answer.clear().position(SelectiveRepeatSender.HEADER_SIZE);
+        answer.put(status).putInt(window).putShort((short) chunkSize).put(codec.algorithm().id);
+        answer.putInt(from).putInt(missing.size()).putShort((short) count);
+        for (int i = from; i < from + count; i++) {
+            answer.putInt(missing.start(i)).putInt(missing.length(i));
+        }
+        int end = answer.position();
+        control.encodeHeader(answer, out.localPort(), out.remotePort(), transferId, SessionSetup.SYN_SEQUENCE,
+                SessionSetup.SYN_FLAG, end - SelectiveRepeatSender.HEADER_SIZE);
+        control.sign(answer, end, null);
+        out.add(answer);
+
+        if (status == SessionSetup.ACCEPTED && missing.chunks() == 0 && !finished) {
+            // everything arrived in an earlier transfer, only the renaming was missing
+            complete();
+        }
+    }
+
+    /**
+     * Answers a request for a page of signatures of the earlier copy of the file. The request carries the SYN, so it
+     * may open the transfer. The signatures of a page are computed once, a repeated request gets the same answer.
+     */
+    private void answerSignatures(ByteBuffer request) throws IOException {
+        int first = request.getInt();
+        if (setup == null) {
+            SessionSetup requested = SessionSetup.readSyn(request);
+            if (requested == null) {
+                return;
+            }
+            accept(requested);
+        }
+        if (!deltaRequested) {
+            deltaRequested = true;
+            openBasis();
+        }
+        int total = basis == null ? 0 : BlockSignatures.blocks(basisLength, blockSize);
+        if (first < 0 || first > total) {
+            return;
+        }
+
+        if (signatureAnswer == null) {
+            int capacity = Math.max(chunkSize, BlockSignatures.SIGNATURE_HEADER + BlockSignatures.SIGNATURE_SIZE);
+            signatureAnswer = ByteBuffer.allocate(SelectiveRepeatSender.HEADER_SIZE + capacity);
+        }
+        if (first != signatureFirst) {
+            int count = Math.min(total - first, (signatureAnswer.capacity() - SelectiveRepeatSender.HEADER_SIZE
+                    - BlockSignatures.SIGNATURE_HEADER) / BlockSignatures.SIGNATURE_SIZE);
+            signatureAnswer.clear().position(SelectiveRepeatSender.HEADER_SIZE);
+            signatureAnswer.put(status).putInt(blockSize).putLong(basisLength).putInt(first).putInt(total).putShort((short) count);
+            if (count > 0) {
+                BlockSignatures.write(basis, blockSize, first, count, signatureAnswer);
+            }
+            int end = signatureAnswer.position();
+            control.encodeHeader(signatureAnswer, out.localPort(), out.remotePort(), transferId,
+                    BlockSignatures.SIGNATURE_SEQUENCE, BlockSignatures.FLAG, end - SelectiveRepeatSender.HEADER_SIZE);
+            control.sign(signatureAnswer, end, null);
+            signatureFirst = first;
+        }
+        out.add(signatureAnswer.position(0));
+    }
+
+    /**
+     * Opens the file an earlier transfer of the same name left as base of a delta, if there is one. A range of a
+     * parallel transfer is always sent in full.
+     */
+    private void openBasis() throws IOException {
+        Path path = StreamingFileWriter.target(setup.fileName, "sr");
+        if (status != SessionSetup.ACCEPTED || setup.isRange() || setup.isBatch() || !Files.isRegularFile(path)) {
+            return;
+        }
+        basis = FileChannel.open(path, StandardOpenOption.READ);
+        basisLength = basis.size();
+        blockSize = BlockSignatures.blockSize(basisLength);
+        copied = new int[bitmap.chunks()];
+        System.out.println("Delta against " + path + ", " + BlockSignatures.blocks(basisLength, blockSize)
+                + " blocks of " + blockSize + " bytes");
+    }
+
+    /**
+     * Copies the blocks of a page of references from the earlier copy into the output, if it is the next page, and
+     * answers with the number of references applied. The last page ends the delta, the chunks covered completely
+     * count as received.
+     */
+    private void applyCopies(ByteBuffer page) throws IOException {
+        if (copied == null || page.remaining() < BlockSignatures.COPY_HEADER) {
+            return;
+        }
+        int first = page.getInt();
+        int total = page.getInt();
+        int count = page.getShort() & 0xFFFF;
+        if (first == copiesApplied && !deltaDone && page.remaining() >= count * BlockSignatures.COPY_SIZE
+                && validCopies(page.duplicate(), count)) {
+            for (int i = 0; i < count; i++) {
+                long offset = page.getLong();
+                long block = page.getInt();
+                long length = (long) page.getInt() * blockSize;
+                output.copy(basis, block * blockSize, length, offset);
+                cover(offset, length);
+                copyEnd = offset + length;
+                copiedBytes += length;
+            }
+            copiesApplied += count;
+            if (copiesApplied >= total) {
+                endDelta();
+            }
+        }
+
+        if (copyAnswer == null) {
+            copyAnswer = ByteBuffer.allocate(SelectiveRepeatSender.HEADER_SIZE + 4);
+        }
+        copyAnswer.clear();
+        copyAnswer.putInt(SelectiveRepeatSender.HEADER_SIZE, copiesApplied);
+        control.encodeHeader(copyAnswer, out.localPort(), out.remotePort(), transferId, BlockSignatures.COPY_SEQUENCE,
+                BlockSignatures.FLAG, 4);
+        control.sign(copyAnswer, copyAnswer.capacity(), null);
+        out.add(copyAnswer);
+    }
+
+    /**
+     * @return true if all references of the page point into the earlier copy and into the file, behind each other.
+     */
+    private boolean validCopies(ByteBuffer page, int count) {
+        long blocks = BlockSignatures.blocks(basisLength, blockSize);
+        long end = copyEnd;
+        for (int i = 0; i < count; i++) {
+            long offset = page.getLong();
+            int block = page.getInt();
+            int length = page.getInt();
+            if (offset < end || block < 0 || length <= 0 || block + (long) length > blocks
+                    || offset + (long) length * blockSize > setup.fileSize) {
+                return false;
+            }
+            end = offset + (long) length * blockSize;
+        }
+        return true;
+    }
+
+    /**
+     * Counts copied bytes towards the chunks they fall into.
+     */
+    private void cover(long offset, long length) {
+        for (long position = offset, end = offset + length; position < end; ) {
+            int chunk = (int) (position / chunkSize);
+            long chunkEnd = Math.min(end, (chunk + 1L) * chunkSize);
+            copied[chunk] += (int) (chunkEnd - position);
+            position = chunkEnd;
+        }
+    }
+
+    private void endDelta() throws IOException {
+        deltaDone = true;
+        for (int chunk = 0; chunk < copied.length; chunk++) {
+            if (copied[chunk] == Math.min(chunkSize, setup.fileSize - (long) chunk * chunkSize)) {
+                bitmap.set(chunk);
+            }
+        }
+        missing = bitmap.missing();
+        closeBasis();
+        System.out.println("Delta: " + copiedBytes + " bytes copied from the earlier copy, " + missing.chunks() + " of "
+                + bitmap.chunks() + " chunks missing");
+    }
+
+    private void closeBasis() throws IOException {
+        if (basis != null) {
+            basis.close();
+            basis = null;
+        }
+    }
+
+    /**
+     * Compares the digest of the sender with the one of the written data once all of it has arrived, and answers it
+     * and every repetition with the result. Before that the digest is ignored, the sender repeats it.
+     */
+    private void answerDigest(ByteBuffer digest) throws IOException {
+        if (fileDigest == null || !complete || digest.remaining() < SessionSetup.DIGEST_SIZE) {
+            return;
+        }
+        if (digestResult < 0) {
+            if (digest.getInt() == (int) fileDigest.getValue()) {
+                digestResult = SessionSetup.DIGEST_MATCH;
+                finish();
+            } else {
+                digestResult = SessionSetup.DIGEST_MISMATCH;
+                discard();
+            }
+        }
+        if (digestAnswer == null) {
+            digestAnswer = ByteBuffer.allocate(SelectiveRepeatSender.HEADER_SIZE + 1);
+        }
+        digestAnswer.clear();
+        digestAnswer.put(SelectiveRepeatSender.HEADER_SIZE, digestResult);
+        control.encodeHeader(digestAnswer, out.localPort(), out.remotePort(), transferId, SessionSetup.DIGEST_SEQUENCE,
+                SessionSetup.DIGEST_FLAG, 1);
+        control.sign(digestAnswer, digestAnswer.capacity(), null);
+        out.add(digestAnswer);
+    }
+
+    /**
+     * Decides on the transfer and opens its output. A rejected session just repeats its answer until it ends.
+     */
+    private void accept(SessionSetup requested) throws IOException {
+        setup = requested;
+        window = Math.max(1, Math.min(maxWindow, setup.window));
+        chunkSize = Math.min(maxChunkSize, setup.chunkSize);
+        setup.window = window;
+        setup.chunkSize = chunkSize;
+        missing = new ChunkBitmap.Ranges();
+
+        status = setup.check();
+        codec.use(setup.negotiateChecksum());
+        setup.checksum = codec.algorithm().id;
+        if (status == SessionSetup.ACCEPTED) {
+            if (setup.digestAlgorithm() != PacketChecksum.NONE) {
+                fileDigest = setup.digestAlgorithm().create();
+            }
+            compressor = setup.compressionAlgorithm().create();
+            if (setup.isRange()) {
+                status = SessionSetup.checkSpace(DIRECTORY, setup.rangeLength);
+                if (status == SessionSetup.ACCEPTED) {
+                    assembly = ReassembledFile.join(assemblies, ipSender.getHostAddress() + "/" + setup.groupId,
+                            setup.fileName, setup.fileSize, setup.streams);
+                    bitmap = new ChunkBitmap(setup.chunks(), chunkSize);
+                }
+            } else {
+                openResumable();
+            }
+        }
+        if (status != SessionSetup.ACCEPTED) {
+            System.out.println("Transfer of " + setup.fileName + " rejected: " + SessionSetup.statusText(status));
+            finished = true;
+            return;
+        }
+
+        missing = bitmap.missing();
+        System.out.println(setup + (missing.chunks() < bitmap.chunks()
+                ? ", resuming with " + missing.chunks() + " of " + bitmap.chunks() + " chunks missing" : ""));
+        ack = ByteBuffer.allocate(SelectiveRepeatSender.ACK_SIZE + (window + 7) / 8);
+        sack = new long[(window + 63) / 64];
+        buffered = new ByteBuffer[window];
+        received = new boolean[window];
+        for (int i = 0; i < window; i++) {
+            buffered[i] = ByteBuffer.allocate(chunkSize);
+        }
+    }
+
+    /**
+     * Continues the part file of an interrupted transfer of the file if there is one, with the chunk size it was
+     * started with unless that is larger than the sender offers now, then the file starts over. If another transfer of
+     * the same file is running, this one can't be resumed and goes to a file of its own.
+     */
+    private void openResumable() throws IOException {
+        output = StreamingFileWriter.resume(setup.fileName, "sr");
+        if (output == null) {
+            output = new StreamingFileWriter(setup.fileName, "sr");
+        } else {
+            bitmapPath = output.part().resolveSibling(output.part().getFileName() + ".map");
+            bitmap = ChunkBitmap.load(bitmapPath, setup.fileSize);
+            if (bitmap != null && bitmap.chunkSize() <= chunkSize) {
+                chunkSize = bitmap.chunkSize();
+                setup.chunkSize = chunkSize;
+            } else {
+                bitmap = null;
+                output.truncate(0);
+            }
+            nextCheckpoint = System.nanoTime() + checkpointInterval;
+        }
+        if (bitmap == null) {
+            bitmap = new ChunkBitmap(setup.chunks(), chunkSize);
+        }
+        status = SessionSetup.checkSpace(DIRECTORY, setup.fileSize - (long) bitmap.cardinality() * chunkSize);
+        if (status == SessionSetup.ACCEPTED) {
+            output.preallocate(setup.fileSize);
+        } else if (bitmapPath != null) {
+            // keep what an earlier transfer left for a later attempt
+            output.close();
+        } else {
+            output.abort();
+        }
+    }
+
+    /**
+     * Hands all buffered packets that are in order to the output, starting at the window base.
+     */
+    private void deliver() throws IOException {
+        while (received[base % window]) {
+            int slot = base % window;
+            write(base, buffered[slot]);
+            received[slot] = false;
+            base++;
+        }
+    }
+
+    private void write(int seq, ByteBuffer payload) throws IOException {
+        int chunk = missing.chunk(seq);
+        long position = chunk * (long) chunkSize;
+        int length = payload.remaining();
+        if (assembly != null) {
+            rangeCrc.update(payload.duplicate());
+            assembly.write(payload, setup.rangeOffset + position);
+        } else {
+            if (fileDigest != null) {
+                int from = payload.position();
+                fileDigest.update(payload);
+                payload.position(from);
+            }
+            output.write(payload, position);
+            bitmap.set(chunk);
+            if (bitmapPath != null && System.nanoTime() - nextCheckpoint >= 0) {
+                bitmap.save(bitmapPath, setup.fileSize);
+                nextCheckpoint = System.nanoTime() + checkpointInterval;
+            }
+        }
+        written += length;
+        metrics.bytes.add(length);
+    }
+
+    /**
+     * All data has been written, completes the file unless it still has to be checked against the digest.
+     */
+    private void complete() throws IOException {
+        if (fileDigest == null) {
+            finish();
+        } else {
+            complete = true;
+        }
+    }
+
+    /**
+     * Throws away the received file after its digest turned out wrong, a retry starts from scratch.
+     */
+    private void discard() throws IOException {
+        finished = true;
+        closeBasis();
+        output.abort();
+        if (bitmapPath != null) {
+            Files.deleteIfExists(bitmapPath);
+        }
+        System.out.println("Transfer of " + setup.fileName + " failed: file digest mismatch, " + written + " bytes discarded.");
+    }
+
+    private void finish() throws IOException {
+        long end = System.nanoTime();
+        finished = true;
+        closeBasis();
+        if (assembly != null) {
+            boolean intact = (int) rangeCrc.getValue() == setup.rangeChecksum;
+            System.out.println("Range at " + setup.rangeOffset + " complete, " + written + " bytes, checksum " + (intact ? "okay" : "wrong"));
+            assembly.rangeDone(intact, written);
+        } else {
+            if (setup.isBatch()) {
+                // a failure keeps part file and bitmap, a repeated batch only has to unpack them
+                Path directory = StreamingFileWriter.target(setup.fileName, "sr");
+                FileBatch.unpack(output, setup.fileSize, setup.files, directory);
+                output.abort();
+                System.out.println("Unpacked " + setup.files + " files into " + directory);
+            } else {
+                output.finish();
+            }
+            if (bitmapPath != null) {
+                Files.deleteIfExists(bitmapPath);
+            }
+            System.out.println("Socket closed, total bytes written: " + written);
+        }
+        FileReceiver.printStats((int) metrics.packetsReceived.get(), FileReceiver.calculateThroughput(start, end, written),
+                (int) metrics.lost.get(), "sr");
+        System.out.println("Corrupt Packets: " + metrics.corrupt.get());
+        System.out.println("Duplicate Packets: " + metrics.duplicates.get());
+        System.out.println("Out of order Packets: " + metrics.outOfOrder.get());
+        if (metrics.recovered.get() > 0) {
+            System.out.println("Recovered from parity: " + metrics.recovered.get());
+        }
+        System.out.println("ACKs sent: " + metrics.acksSent.get());
+        if (metrics.sendDropped.get() > 0) {
+            System.out.println("Dropped by the send buffer: " + metrics.sendDropped.get());
+        }
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public void abort() throws IOException {
+        if (setup == null) {
+            return;
+        }
+        System.out.println("Transfer of " + setup.fileName + " aborted.");
+        closeBasis();
+        if (assembly != null) {
+            assembly.rangeDone(false, written);
+        } else if (bitmapPath != null) {
+            bitmap.save(bitmapPath, setup.fileSize);
+            output.close();
+            System.out.println(bitmap.cardinality() + " of " + bitmap.chunks() + " chunks kept for resuming.");
+        } else if (output != null) {
+            output.abort();
+        }
+    }
+
+    /**
+     * Acknowledges everything before the window base plus the buffered packets behind it.
+     */
+    private void sendACK() throws IOException {
+        int sackBits = window - 1;
+        Arrays.fill(sack, 0);
+        for (int i = 0; i < sackBits; i++) {
+            if (received[(base + 1 + i) % window]) {
+                sack[i >>> 6] |= 1L << i;
+            }
+        }
+        codec.encodeACK(ack, out.localPort(), out.remotePort(), transferId, base, sack, sackBits);
+        out.add(ack);
+        metrics.acksSent.increment();
+        if (unackedSince != 0) {
+            metrics.recordAckDelay(System.nanoTime() - unackedSince);
+            unackedSince = 0;
+        }
+        unacked = 0;
+        ackDue = Long.MAX_VALUE;
+    }
+}
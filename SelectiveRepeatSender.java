@@ -0,0 +1,994 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Checksum;
+
+/**
+ * Sender side of the Selective Repeat protocol. Up to {@code window} packets are in flight at the same time and
+ * every packet has its own retransmission timer on a {@link TimingWheel}, so the event loop never scans the window
+ * for expired packets. The timeout adapts to the measured round trip time, see {@link RttEstimator}.
+ * <p>
+ * The receiver acknowledges cumulatively and reports the packets it buffered behind a gap in a SACK bitmap. A packet
+ * is retransmitted before its timer expires once at least three packets above it have been acknowledged and one of
+ * them was sent after it, i.e. it has most likely been lost rather than delayed.
+ * <p>
+ * How many of the {@code window} packets may actually be in flight is decided by a {@link CongestionControl}, fed with
+ * the RTT samples, the losses detected from SACKs and the timeouts. New packets are paced by a {@link TokenBucketPacer}
+ * at 1.25 congestion windows per smoothed RTT (system property "pacing=false" turns it off).
+ * <p>
+ * Packet layout is the one of the alternating bit protocol, but the single alternating bit byte is replaced by a
+ * transfer id and a four byte sequence number: source port (2), destination port (2), transfer id (4), sequence number (4),
+ * send-end-flag (1), payload length (2), lower 4 byte of checksum (4), payload. Every transfer uses a random transfer
+ * id and an ephemeral source port, so a receiver can serve several senders of the same host at once. Data packets and
+ * ACKs use the checksum negotiated in the SYN ("checksum", default crc32c), all other packets a CRC32.
+ * <p>
+ * With "digest" set to a {@link PacketChecksum} other than none, the sender digests the payloads in sequence order as
+ * it sends them for the first time and, after the last ACK, has the receiver check the digest, see
+ * {@link SessionSetup}.
+ * <p>
+ * A transfer opens with a SYN announcing name and size of the file, chunk size and window, see {@link SessionSetup}.
+ * The SYN-ACK tells the window and chunk size the receiver accepted and which chunks it is missing: if an earlier
+ * transfer of the file got interrupted, only those are sent, numbered consecutively from 0 in the order of their
+ * ranges, see {@link ChunkBitmap.Ranges}. A chunk is the payload of one packet, all but the last of the file have the
+ * accepted chunk size. A sender may also transmit just a byte range of the file as one stream of a
+ * {@link ParallelSender}, the SYN then carries the range.
+ * <p>
+ * With "delta=true" a whole file is sent as a delta against the copy an earlier transfer left at the receiver: the
+ * sender fetches the signatures of its blocks, has the receiver copy the blocks it finds in the file and then sends
+ * only the chunks still missing, see {@link BlockSignatures}.
+ * <p>
+ * With "fec" set, every group of data packets is followed by an {@link XorParity} packet the receiver rebuilds a
+ * single lost packet of the group from. A packet is then only retransmitted after SACKs once an ACK shows that the
+ * parity of its group has arrived, so the receiver had its chance to repair the loss first.
+ * <p>
+ * The file is memory mapped and every datagram is sent as a gather write of a pooled header buffer and a view on
+ * the mapped file, so neither the file nor the single packets are copied to the heap.
+ */
+public class SelectiveRepeatSender {
+
+    static final int TRANSFER_ID_SIZE = 4;
+    static final int HEADER_SIZE = 2 + 2 + TRANSFER_ID_SIZE + PacketCodec.SEQUENCE_NUMBER + 1 + 2 + 4;
+    // ACK without SACK bitmap
+    static final int ACK_SIZE = 2 + 2 + TRANSFER_ID_SIZE + PacketCodec.SEQUENCE_NUMBER + 2 + 4;
+    // packets acknowledged above a missing one before it is considered lost
+    private static final int DUPLICATE_THRESHOLD = 3;
+    private static final double PACING_GAIN = 1.25;
+    private static final long MILLI = 1_000_000L;
+    // time a control packet is repeated without an answer before the transfer fails, "control.timeout" in seconds
+    private static final long CONTROL_TIMEOUT = Math.max(1, Long.getLong("control.timeout", 30)) * 1000 * MILLI;
+    // largest chunk that fits into a UDP datagram
+    static final int MAX_CHUNK_SIZE = PathMtu.MAX_DATAGRAM - HEADER_SIZE;
+    // probe rounds before falling back to the smallest datagram size
+    private static final int PROBE_ROUNDS = 3;
+    // copies of every probe per round, so a single loss doesn't shrink the datagrams
+    private static final int PROBE_COPIES = 2;
+    // weight of a packet in the loss rate that adapts the FEC group size
+    private static final double LOSS_GAIN = 1.0 / 64;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final int localPort;
+    private final int remotePort;
+    private final int transferId;
+    private final TransferSource file;
+    private final SessionSetup setup;
+    // window and chunk size as accepted by the receiver
+    private int window;
+    private int chunkSize;
+    // header plus chunk
+    private int packetSize;
+    private int totalPackets;
+    // chunks to send, as the receiver asked for them in its SYN-ACK
+    private ChunkBitmap.Ranges missing;
+    private long bytesToSend;
+
+    // pooled buffers: header and ACK, reused for every datagram
+    private final ByteBuffer header;
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(PathMtu.MAX_DATAGRAM);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final PacketCodec codec = new PacketCodec(PacketCodec.SEQUENCE_NUMBER);
+    private final PacketCodec control = new PacketCodec(PacketCodec.SEQUENCE_NUMBER);
+    // digest of the sent data, null without one
+    private Checksum fileDigest;
+    // forward error correction, null without it
+    private final int fecGroup = XorParity.configured();
+    private XorParity parity;
+    private int groupSize;
+    // last sequence number of the parity group of every slot, -1 while the parity hasn't been sent
+    private int[] groupEnd;
+    private double lossRate = 0;
+    // whether the loss of the packet in a slot has been counted in the loss rate
+    private boolean[] lossCounted;
+    private int parityPackets = 0;
+    // compression of the chunks, null without
+    private ChunkCompression.Packer packer;
+    // delta transfer: signatures of the receiver's copy and the blocks of it found in the file, null without
+    private final boolean delta = Boolean.getBoolean("delta");
+    private BlockSignatures signatures;
+    private BlockSignatures.Copies copies;
+
+    private final RttEstimator rtt = new RttEstimator();
+    private CongestionControl congestion;
+    private TokenBucketPacer pacer;
+    private final boolean pacing = !"false".equals(System.getProperty("pacing"));
+    private final long maxAckDelay = Long.getLong("ack.delay", 500) * 1000;
+    // ACKs read per wakeup, so the timers and the pacer get their turn under a flood of ACKs
+    private final int batch = Math.max(1, Integer.getInteger("io.batch", 32));
+
+    // one slot per window position (sequence number modulo window), times from System.nanoTime()
+    private long[] sentAt;
+    // retransmission timer of every slot, running while its packet is unacknowledged
+    private final TimingWheel timers = new TimingWheel();
+    private TimingWheel.Timer[] retransmitTimers;
+    // slots whose timer fired during the current advance of the wheel
+    private int[] expiredSlots;
+    private int expiredCount = 0;
+    private boolean[] retransmitted;
+    private boolean[] acked;
+
+    private int base = 0;
+    private int nextSeq = 0;
+    // acknowledged packets at or above base
+    private int ackedInWindow = 0;
+    // earliest time the pacer lets the next new packet go, 0 if not waiting for it
+    private long pacedUntil = 0;
+    private final TransferMetrics metrics;
+    private int fastRetransmissions = 0;
+    private long duration = 0;
+
+    /**
+     * @param setup Metadata for the SYN, window and chunk size are upper limits for what the receiver accepts.
+     */
+    SelectiveRepeatSender(DatagramChannel channel, SessionSetup setup, TransferSource file) throws IOException {
+        this.channel = channel;
+        this.localPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        this.remotePort = ((InetSocketAddress) channel.getRemoteAddress()).getPort();
+        this.transferId = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+        this.setup = setup;
+        this.file = file;
+        this.window = setup.window;
+        this.chunkSize = setup.chunkSize;
+        this.bytesToSend = setup.rangeLength;
+        this.header = ByteBuffer.allocateDirect(HEADER_SIZE);
+
+        channel.configureBlocking(false);
+        this.selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        gather[0] = header;
+        this.metrics = TransferMetrics.open("sr to " + channel.getRemoteAddress() + " " + setup.fileName);
+    }
+
+    /**
+     * Maps the file from the src folder and transmits it to the receiver using Selective Repeat.
+     *
+     * @param fileName Name of the file inside the src folder.
+     * @param ipTarget Address of the receiver.
+     * @param window   Maximum number of unacknowledged packets.
+     */
+    public static void transmit(String fileName, String ipTarget, int window) throws IOException {
+        try (MappedFileSource file = new MappedFileSource(Paths.get("src/" + fileName))) {
+            transmit(file, new SessionSetup(fileName, file.size(), MAX_CHUNK_SIZE, window), ipTarget);
+        }
+    }
+
+    /**
+     * Transmits the files below a directory of the src folder, or those of a list in it, in one session, see
+     * {@link FileBatch}.
+     *
+     * @param name     Path of the directory or the list inside the src folder.
+     * @param ipTarget Address of the receiver.
+     * @param window   Maximum number of unacknowledged packets.
+     */
+    public static void transmitBatch(String name, String ipTarget, int window) throws IOException {
+        try (FileBatch batch = FileBatch.of(name)) {
+            transmit(batch, new SessionSetup(batch.name(), batch.size(), MAX_CHUNK_SIZE, window).batch(batch.files()), ipTarget);
+            System.out.println("Batch: " + batch.files() + " files");
+        }
+    }
+
+    private static void transmit(TransferSource source, SessionSetup setup, String ipTarget) throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.bind(new InetSocketAddress(0));
+            channel.connect(new InetSocketAddress(InetAddress.getByName(ipTarget), FileSender.DESTINATION_PORT));
+            SelectiveRepeatSender sender = new SelectiveRepeatSender(channel, setup, source);
+            sender.transfer();
+            sender.printStats();
+        }
+    }
+
+    /**
+     * Sends all packets and waits for their ACKs, the selector is closed afterwards.
+     */
+    void transfer() throws IOException {
+        try {
+            run();
+        } finally {
+            metrics.close();
+            selector.close();
+        }
+    }
+
+    private void run() throws IOException {
+        long start = System.nanoTime();
+        probePathMtu();
+        if (delta && !setup.isRange() && !setup.isBatch()) {
+            sendDelta();
+        }
+        handshake();
+        while (base < totalPackets) {
+            fillWindow();
+
+            long deadline = Math.min(timers.nextDeadline(), System.nanoTime() + retransmissionTimeout());
+            if (pacedUntil != 0 && pacedUntil - deadline < 0) {
+                deadline = pacedUntil;
+            }
+            long wait = deadline - System.nanoTime();
+            int ready;
+            if (wait >= MILLI) {
+                ready = selector.select(wait / MILLI);
+            } else {
+                // socket timeouts only have millisecond resolution, wait for the pacer with nanosecond precision
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                ready = selector.selectNow();
+            }
+            if (ready > 0) {
+                selector.selectedKeys().clear();
+                receiveACKs();
+            }
+            resendExpired();
+        }
+        if (fileDigest != null) {
+            verifyDigest();
+        }
+        duration = System.nanoTime() - start;
+    }
+
+    /**
+     * Lowers the chunk size to the largest datagram that reaches the receiver, see {@link PathMtu}. All candidate sizes
+     * are probed at once, a round ends one RTO after the probes were sent or twice the time the first answer took,
+     * whatever comes first.
+     */
+    private void probePathMtu() throws IOException {
+        int limit = (int) Math.min(PathMtu.limit((InetSocketAddress) channel.getRemoteAddress()), HEADER_SIZE + (long) chunkSize);
+        int[] sizes = PathMtu.candidates(limit);
+        int largest = sizes.length == 1 ? sizes[0] : 0;
+        ByteBuffer probe = ByteBuffer.allocateDirect(sizes[0]);
+        for (int round = 0; largest == 0 && round < PROBE_ROUNDS; round++) {
+            for (int size : sizes) {
+                probe.clear();
+                control.encodeHeader(probe, localPort, remotePort, transferId, PathMtu.PROBE_SEQUENCE, PathMtu.PROBE_FLAG, size - HEADER_SIZE);
+                control.sign(probe, size, null);
+                for (int copy = 0; copy < PROBE_COPIES; copy++) {
+                    try {
+                        channel.write(probe);
+                    } catch (PortUnreachableException e) {
+                        // receiver not up (yet), try again in the next round
+                    }
+                    probe.position(0);
+                    metrics.packetsSent.increment();
+                }
+            }
+
+            long sent = System.nanoTime();
+            long deadline = sent + rtt.rtoNanos();
+            int answered = 0;
+            for (long wait; answered < sizes[0] && (wait = deadline - System.nanoTime()) > 0; ) {
+                if (selector.select(Math.max(1, wait / MILLI)) == 0) {
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                int size = receiveProbeAnswers();
+                if (answered == 0 && size > 0) {
+                    deadline = Math.min(deadline, System.nanoTime() + (System.nanoTime() - sent));
+                }
+                answered = Math.max(answered, size);
+            }
+            if (answered == 0) {
+                rtt.backoff();
+                metrics.timeouts.increment();
+            }
+            largest = answered;
+        }
+        if (largest == 0) {
+            largest = sizes[sizes.length - 1];
+        }
+        chunkSize = setup.chunkSize = largest - HEADER_SIZE - (fecGroup != 0 ? XorParity.PREFIX : 0);
+    }
+
+    /**
+     * @return Largest probe size answered by the datagrams waiting on the channel, 0 if none.
+     */
+    private int receiveProbeAnswers() throws IOException {
+        int largest = 0;
+        while (true) {
+            ackBuffer.clear();
+            try {
+                if (channel.receive(ackBuffer) == null) {
+                    return largest;
+                }
+            } catch (PortUnreachableException e) {
+                return largest;
+            }
+            ackBuffer.flip();
+            if (!control.wrap(ackBuffer).isCorrupt() && control.transferId() == transferId && control.sequence() == PathMtu.PROBE_SEQUENCE
+                    && (control.flag() & PathMtu.PROBE_FLAG) != 0 && control.payloadLength() >= PathMtu.ANSWER_SIZE) {
+                largest = Math.max(largest, control.payload().getInt());
+            }
+        }
+    }
+
+    /**
+     * Fetches the signatures of the receiver's copy of the file page by page, looks for its blocks in the file and
+     * sends the references to the blocks found, at least one page so the receiver knows the delta is complete.
+     *
+     * @throws IOException If the receiver rejected the transfer.
+     */
+    private void sendDelta() throws IOException {
+        ByteBuffer request = ByteBuffer.allocateDirect(FileSender.SIZE);
+        int[] received = {0};
+        do {
+            request.clear().position(HEADER_SIZE);
+            setup.writeSyn(request, received[0]);
+            exchange(request, BlockSignatures.SIGNATURE_SEQUENCE, answer -> {
+                if (answer.remaining() < BlockSignatures.SIGNATURE_HEADER) {
+                    return false;
+                }
+                byte status = answer.get();
+                if (status != SessionSetup.ACCEPTED) {
+                    throw new IOException("Transfer of " + setup.fileName + " rejected: " + SessionSetup.statusText(status));
+                }
+                int blockSize = answer.getInt();
+                long basisLength = answer.getLong();
+                int first = answer.getInt();
+                int total = answer.getInt();
+                int count = answer.getShort() & 0xFFFF;
+                if (first != received[0] || answer.remaining() < count * BlockSignatures.SIGNATURE_SIZE
+                        || first + count > total || (signatures != null && signatures.blocks() != total)) {
+                    return false;
+                }
+                if (signatures == null) {
+                    signatures = new BlockSignatures(blockSize, basisLength, total);
+                }
+                signatures.read(answer, first, count);
+                received[0] += count;
+                return true;
+            });
+        } while (received[0] < signatures.blocks());
+        if (signatures.blocks() == 0) {
+            // nothing to compare with, the data transfer sends the whole file
+            return;
+        }
+
+        copies = signatures.match(file);
+        ByteBuffer page = ByteBuffer.allocateDirect(HEADER_SIZE + chunkSize);
+        int applied = 0;
+        do {
+            page.clear().position(HEADER_SIZE);
+            int end = applied + copies.write(page, applied);
+            exchange(page, BlockSignatures.COPY_SEQUENCE, answer -> answer.remaining() >= 4 && answer.getInt() >= end);
+            applied = end;
+        } while (applied < copies.size());
+    }
+
+    /**
+     * Sends the control packet filled up to its position and repeats it with backed off timeout until an answer is
+     * taken.
+     *
+     * @throws IOException If no answer arrived within {@link #CONTROL_TIMEOUT}.
+     */
+    private void exchange(ByteBuffer packet, int sequence, Answer answer) throws IOException {
+        int end = packet.position();
+        control.encodeHeader(packet, localPort, remotePort, transferId, sequence, BlockSignatures.FLAG, end - HEADER_SIZE);
+        control.sign(packet, end, null);
+        packet.limit(end);
+        boolean repeated = false;
+        long since = System.nanoTime();
+        while (true) {
+            packet.position(0);
+            try {
+                channel.write(packet);
+            } catch (PortUnreachableException e) {
+                // receiver not up (yet), try again after the timeout
+            }
+            metrics.packetsSent.increment();
+
+            long sent = System.nanoTime();
+            long deadline = sent + rtt.rtoNanos();
+            for (long wait; (wait = deadline - System.nanoTime()) > 0; ) {
+                if (selector.select(Math.max(1, wait / MILLI)) > 0) {
+                    selector.selectedKeys().clear();
+                    if (receiveAnswer(sequence, answer)) {
+                        if (!repeated) {
+                            long sample = System.nanoTime() - sent;
+                            rtt.sample(sample);
+                            metrics.recordRtt(sample);
+                        }
+                        return;
+                    }
+                }
+            }
+            rtt.backoff();
+            metrics.timeouts.increment();
+            repeated = true;
+            giveUpAfter(since, "block signature exchange");
+        }
+    }
+
+    /**
+     * @return true if one of the datagrams waiting on the channel is an answer to the control packet that was taken.
+     */
+    private boolean receiveAnswer(int sequence, Answer answer) throws IOException {
+        while (true) {
+            ackBuffer.clear();
+            try {
+                if (channel.receive(ackBuffer) == null) {
+                    return false;
+                }
+            } catch (PortUnreachableException e) {
+                return false;
+            }
+            ackBuffer.flip();
+            if (!control.wrap(ackBuffer).isCorrupt() && control.transferId() == transferId && control.sequence() == sequence
+                    && (control.flag() & BlockSignatures.FLAG) != 0 && answer.take(control.payload())) {
+                return true;
+            }
+        }
+    }
+
+    private interface Answer {
+        /**
+         * @return false if the payload is no answer to the last packet, e.g. one to an earlier page.
+         */
+        boolean take(ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * Sends the SYN and waits for the SYN-ACK, then asks for further pages of missing ranges if there are more than
+     * fit into one. A SYN is repeated with backed off timeout until its answer arrives.
+     *
+     * @throws IOException If the receiver rejected the transfer or didn't answer within {@link #CONTROL_TIMEOUT}.
+     */
+    private void handshake() throws IOException {
+        ChunkBitmap.Ranges ranges = new ChunkBitmap.Ranges();
+        ByteBuffer syn = ByteBuffer.allocateDirect(FileSender.SIZE);
+        int total = -1;
+        boolean repeated = false;
+        long since = System.nanoTime();
+        while (total < 0 || ranges.size() < total) {
+            syn.clear().position(HEADER_SIZE);
+            setup.writeSyn(syn, ranges.size());
+            int end = syn.position();
+            control.encodeHeader(syn, localPort, remotePort, transferId, SessionSetup.SYN_SEQUENCE, SessionSetup.SYN_FLAG, end - HEADER_SIZE);
+            control.sign(syn, end, null);
+            try {
+                channel.write(syn);
+            } catch (PortUnreachableException e) {
+                // receiver not up (yet), try again after the timeout
+            }
+            metrics.packetsSent.increment();
+
+            long sent = System.nanoTime();
+            long deadline = sent + rtt.rtoNanos();
+            int answered = -1;
+            for (long wait; answered < 0 && (wait = deadline - System.nanoTime()) > 0; ) {
+                if (selector.select(Math.max(1, wait / MILLI)) > 0) {
+                    selector.selectedKeys().clear();
+                    answered = receiveSynAck(ranges);
+                }
+            }
+            if (answered < 0) {
+                rtt.backoff();
+                metrics.timeouts.increment();
+                repeated = true;
+                giveUpAfter(since, "SYN");
+                continue;
+            }
+            if (!repeated) {
+                long sample = System.nanoTime() - sent;
+                rtt.sample(sample);
+                metrics.recordRtt(sample);
+            }
+            repeated = false;
+            since = System.nanoTime();
+            total = answered;
+        }
+
+        missing = ranges;
+        totalPackets = ranges.chunks();
+        bytesToSend = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            int end = ranges.start(i) + ranges.length(i);
+            bytesToSend += fileOffset(end - 1) + dataLength(end - 1) - fileOffset(ranges.start(i));
+        }
+        sentAt = new long[window];
+        retransmitTimers = new TimingWheel.Timer[window];
+        expiredSlots = new int[window];
+        for (int i = 0; i < window; i++) {
+            int slot = i;
+            retransmitTimers[i] = new TimingWheel.Timer(() -> expiredSlots[expiredCount++] = slot);
+        }
+        retransmitted = new boolean[window];
+        acked = new boolean[window];
+        lossCounted = new boolean[window];
+        congestion = CongestionControl.configured(window);
+        packetSize = HEADER_SIZE + chunkSize;
+        pacer = new TokenBucketPacer(2L * packetSize);
+        if (setup.digestAlgorithm() != PacketChecksum.NONE) {
+            fileDigest = setup.digestAlgorithm().create();
+        }
+        ChunkCompression.Compressor compressor = setup.compressionAlgorithm().create();
+        if (compressor != null) {
+            packer = new ChunkCompression.Packer(compressor, chunkSize);
+        }
+        if (fecGroup != 0) {
+            parity = new XorParity(chunkSize);
+            groupEnd = new int[window];
+        }
+    }
+
+    /**
+     * Reads all datagrams waiting on the channel and takes window, chunk size and missing ranges from the answer to
+     * the last SYN.
+     *
+     * @return Total number of missing ranges or -1 if the answer hasn't arrived.
+     * @throws IOException If the receiver rejected the transfer.
+     */
+    private int receiveSynAck(ChunkBitmap.Ranges ranges) throws IOException {
+        int total = -1;
+        while (true) {
+            ackBuffer.clear();
+            try {
+                if (channel.receive(ackBuffer) == null) {
+                    return total;
+                }
+            } catch (PortUnreachableException e) {
+                return total;
+            }
+            ackBuffer.flip();
+            if (control.wrap(ackBuffer).isCorrupt() || control.transferId() != transferId
+                    || control.sequence() != SessionSetup.SYN_SEQUENCE || (control.flag() & SessionSetup.SYN_FLAG) == 0
+                    || control.payloadLength() < SessionSetup.ANSWER_SIZE) {
+                continue;
+            }
+            ByteBuffer answer = control.payload();
+            byte status = answer.get();
+            if (status != SessionSetup.ACCEPTED) {
+                throw new IOException("Transfer of " + setup.fileName + " rejected: " + SessionSetup.statusText(status));
+            }
+            int acceptedWindow = answer.getInt();
+            int acceptedChunkSize = answer.getShort() & 0xFFFF;
+            PacketChecksum checksum = PacketChecksum.byId(answer.get());
+            if (checksum == null) {
+                throw new IOException("Receiver chose an unknown checksum algorithm");
+            }
+            if (total >= 0 || answer.getInt() != ranges.size()) {
+                // duplicate or answer to an earlier SYN
+                continue;
+            }
+            if (acceptedChunkSize < 1 || acceptedChunkSize > chunkSize) {
+                // the receiver would place the chunks elsewhere than they are read from
+                throw new IOException("Receiver chose chunk size " + acceptedChunkSize + ", offered was " + chunkSize);
+            }
+            window = Math.max(1, Math.min(window, acceptedWindow));
+            chunkSize = acceptedChunkSize;
+            codec.use(checksum);
+            total = answer.getInt();
+            for (int count = answer.getShort() & 0xFFFF; count > 0; count--) {
+                ranges.add(answer.getInt(), answer.getInt());
+            }
+        }
+    }
+
+    /**
+     * Repeats the digest of the sent data with backed off timeout until the receiver answers whether it matches.
+     *
+     * @throws IOException If the receiver got different data or didn't answer within {@link #CONTROL_TIMEOUT}.
+     */
+    private void verifyDigest() throws IOException {
+        ByteBuffer packet = ByteBuffer.allocateDirect(HEADER_SIZE + SessionSetup.DIGEST_SIZE);
+        packet.putInt(HEADER_SIZE, (int) fileDigest.getValue());
+        control.encodeHeader(packet, localPort, remotePort, transferId, SessionSetup.DIGEST_SEQUENCE, SessionSetup.DIGEST_FLAG, SessionSetup.DIGEST_SIZE);
+        control.sign(packet, packet.capacity(), null);
+        int result = -1;
+        long since = System.nanoTime();
+        while (result < 0) {
+            try {
+                channel.write(packet);
+            } catch (PortUnreachableException e) {
+                // receiver gone, try again after the timeout
+            }
+            packet.position(0);
+            metrics.packetsSent.increment();
+
+            long deadline = System.nanoTime() + rtt.rtoNanos();
+            for (long wait; result < 0 && (wait = deadline - System.nanoTime()) > 0; ) {
+                if (selector.select(Math.max(1, wait / MILLI)) > 0) {
+                    selector.selectedKeys().clear();
+                    result = receiveDigestAnswer();
+                }
+            }
+            if (result < 0) {
+                rtt.backoff();
+                metrics.timeouts.increment();
+                giveUpAfter(since, "file digest");
+            }
+        }
+        if (result != SessionSetup.DIGEST_MATCH) {
+            throw new IOException("Transfer of " + setup.fileName + " failed: file digest mismatch at the receiver");
+        }
+    }
+
+    /**
+     * @param since Time the control packet was first sent at, from {@link System#nanoTime()}.
+     * @throws IOException If the receiver hasn't answered for {@link #CONTROL_TIMEOUT}.
+     */
+    private void giveUpAfter(long since, String stage) throws IOException {
+        if (System.nanoTime() - since >= CONTROL_TIMEOUT) {
+            throw new IOException("Transfer of " + setup.fileName + " failed: no answer to the " + stage + " within "
+                    + CONTROL_TIMEOUT / 1000 / MILLI + " s");
+        }
+    }
+
+    /**
+     * @return Result the receiver answered to the digest with or -1 if none of the waiting datagrams is the answer.
+     */
+    private int receiveDigestAnswer() throws IOException {
+        while (true) {
+            ackBuffer.clear();
+            try {
+                if (channel.receive(ackBuffer) == null) {
+                    return -1;
+                }
+            } catch (PortUnreachableException e) {
+                return -1;
+            }
+            ackBuffer.flip();
+            // late ACKs are ignored
+            if (!control.wrap(ackBuffer).isCorrupt() && control.transferId() == transferId && control.sequence() == SessionSetup.DIGEST_SEQUENCE
+                    && (control.flag() & SessionSetup.DIGEST_FLAG) != 0 && control.payloadLength() >= 1) {
+                return control.payload().get();
+            }
+        }
+    }
+
+    void printStats() {
+        FileSender.printStats(bytesToSend, FileSender.calculateThroughput(duration, bytesToSend), 0, 0, (int) metrics.packetsSent.get());
+        int chunks = (int) Math.max(1, (setup.rangeLength + chunkSize - 1) / chunkSize);
+        if (totalPackets < chunks) {
+            System.out.println("Resumed: " + totalPackets + " of " + chunks + " chunks were missing at the receiver");
+        }
+        if (copies != null) {
+            System.out.println("Delta: " + copies.bytes() + " of " + setup.fileSize + " bytes found in the receiver's copy, "
+                    + copies.size() + " references");
+        }
+        System.out.println("Window size: " + window + ", chunk size: " + chunkSize);
+        System.out.println("Timeouts: " + metrics.timeouts.get());
+        System.out.println("Retransmissions: " + metrics.retransmissions.get() + " (" + fastRetransmissions + " after SACK)");
+        System.out.println("ACKs received: " + metrics.acksReceived.get());
+        if (parity != null) {
+            System.out.println("Parity packets: " + parityPackets + ", last group size " + groupSize);
+        }
+        if (packer != null) {
+            System.out.printf("Compression: %s, %.1f %% of the chunk bytes sent%n", setup.compressionAlgorithm(), packer.ratio() * 100);
+        }
+        System.out.println("Congestion control: " + congestion.name() + ", final window " + congestion.window()
+                + (pacing ? String.format(", pacing rate %.1f kbit/s", pacer.rate() * 8 / 1000) : ""));
+        System.out.println(rtt.summary());
+    }
+
+    int packetsSent() {
+        return (int) metrics.packetsSent.get();
+    }
+
+    int retransmissions() {
+        return (int) metrics.retransmissions.get();
+    }
+
+    int timeouts() {
+        return (int) metrics.timeouts.get();
+    }
+
+    /**
+     * Sends new packets as long as neither the window nor the congestion window is exhausted and the pacer allows it.
+     */
+    private void fillWindow() throws IOException {
+        pacedUntil = 0;
+        while (nextSeq < totalPackets && nextSeq < base + window && nextSeq - base - ackedInWindow < congestion.window()) {
+            if (pacing) {
+                long now = System.nanoTime();
+                long delay = pacer.delay(packetSize, now);
+                if (delay > 0) {
+                    pacedUntil = now + delay;
+                    return;
+                }
+                pacer.consume(packetSize);
+            }
+            acked[nextSeq % window] = false;
+            retransmitted[nextSeq % window] = false;
+            lossCounted[nextSeq % window] = false;
+            ByteBuffer payload = send(nextSeq);
+            if (fileDigest != null || parity != null) {
+                // the payload is a view on the mapped region, ending at its limit
+                payload.position(payload.limit() - dataLength(missing.chunk(nextSeq)));
+                if (parity != null) {
+                    protect(nextSeq, payload);
+                }
+                if (fileDigest != null) {
+                    fileDigest.update(payload);
+                }
+            }
+            nextSeq++;
+        }
+    }
+
+    /**
+     * Adds a packet sent for the first time to the current parity group and sends the parity once the group is full
+     * or the packet is the last one. The group size is chosen when a group starts.
+     */
+    private void protect(int seq, ByteBuffer payload) throws IOException {
+        if (parity.count() == 0) {
+            // a group larger than the packets in flight would hold its parity back for more than a round trip
+            int inFlight = Math.max(1, Math.min(window, congestion.window()));
+            groupSize = Math.min(inFlight, fecGroup == XorParity.AUTO ? XorParity.groupSize(lossRate) : fecGroup);
+        }
+        groupEnd[seq % window] = -1;
+        parity.add(seq, payload);
+        if (parity.count() < groupSize && seq < totalPackets - 1) {
+            return;
+        }
+        int first = parity.first();
+        int last = first + parity.count() - 1;
+        ByteBuffer repair = parity.finish();
+        header.clear();
+        codec.encodeHeader(header, localPort, remotePort, transferId, first, XorParity.FLAG, repair.remaining());
+        codec.sign(header, HEADER_SIZE, repair);
+        gather[1] = repair;
+        try {
+            channel.write(gather);
+        } catch (PortUnreachableException e) {
+            // receiver not up (yet), the data packets get retransmitted anyway
+        }
+        if (pacing) {
+            pacer.consume(HEADER_SIZE + repair.limit());
+        }
+        for (int member = first; member <= last; member++) {
+            groupEnd[member % window] = last;
+        }
+        metrics.packetsSent.increment();
+        parityPackets++;
+    }
+
+    /**
+     * Reads the ACKs that are waiting on the channel, at most "io.batch" of them.
+     */
+    private void receiveACKs() throws IOException {
+        for (int i = 0; i < batch; i++) {
+            ackBuffer.clear();
+            try {
+                if (channel.receive(ackBuffer) == null) {
+                    return;
+                }
+            } catch (PortUnreachableException e) {
+                // receiver not up (yet), the retransmission timers take care of it
+                return;
+            }
+            ackBuffer.flip();
+            int cumulative = codec.checkACK(ackBuffer);
+            if (cumulative >= 0 && codec.transferId() == transferId) {
+                metrics.acksReceived.increment();
+                receiveACK(cumulative);
+            }
+        }
+    }
+
+    /**
+     * Marks everything before {@code cumulative} and all packets in the SACK bitmap of the ACK the codec wraps
+     * as acknowledged, then retransmits the packets the ACK shows to be lost.
+     */
+    private void receiveACK(int cumulative) throws IOException {
+        if (cumulative > nextSeq) {
+            return;
+        }
+        // newest of the newly acknowledged packets, its send time tells which packets in flight were sent before
+        int newest = -1;
+        int ackedBefore = ackedInWindow;
+        for (int seq = base; seq < cumulative; seq++) {
+            newest = markAcked(seq, newest);
+        }
+        int sackBits = Math.min(codec.sackBits(), nextSeq - cumulative - 1);
+        for (int i = 0; i < sackBits; i++) {
+            int seq = cumulative + 1 + i;
+            if (seq >= base && codec.isSelectivelyAcked(i)) {
+                newest = markAcked(seq, newest);
+            }
+        }
+        if (newest < 0) {
+            return;
+        }
+        int newestSlot = newest % window;
+        long newestSentAt = sentAt[newestSlot];
+        long sample = -1;
+        if (!retransmitted[newestSlot]) {
+            // Karn's rule: only packets sent once give an unambiguous round trip time
+            sample = System.nanoTime() - newestSentAt;
+            rtt.sample(sample);
+            metrics.recordRtt(sample);
+        }
+        congestion.onAck(ackedInWindow - ackedBefore, sample);
+
+        // slide the window over all acknowledged packets
+        while (base < nextSeq && acked[base % window]) {
+            acked[base % window] = false;
+            ackedInWindow--;
+            base++;
+        }
+
+        int ackedAbove = 0;
+        for (int seq = nextSeq - 1; seq >= base; seq--) {
+            int slot = seq % window;
+            if (acked[slot]) {
+                ackedAbove++;
+            } else if (ackedAbove >= DUPLICATE_THRESHOLD && sentAt[slot] - newestSentAt < 0) {
+                countLoss(slot);
+                if (groupEnd != null && groupEnd[slot] >= 0 && newest <= groupEnd[slot]) {
+                    // the parity of its group may still repair it
+                    continue;
+                }
+                congestion.onLoss(seq, nextSeq);
+                fastRetransmissions++;
+                metrics.retransmissions.increment();
+                retransmitted[slot] = true;
+                send(seq);
+            }
+        }
+        updatePacingRate();
+    }
+
+    /**
+     * Counts a lost packet in the loss rate once, even if the loss gets repaired by the receiver or detected again.
+     */
+    private void countLoss(int slot) {
+        if (!lossCounted[slot]) {
+            lossCounted[slot] = true;
+            lossRate += (1 - lossRate) * LOSS_GAIN;
+        }
+    }
+
+    private void updatePacingRate() {
+        long srtt = rtt.srttNanos();
+        if (pacing && srtt > 0) {
+            pacer.setRate(PACING_GAIN * congestion.window() * packetSize * 1e9 / srtt);
+        }
+    }
+
+    /**
+     * @return The sequence number of the packet that was sent last among {@code seq}, if it hasn't been acknowledged
+     * before, and {@code newest}.
+     */
+    private int markAcked(int seq, int newest) {
+        int slot = seq % window;
+        if (acked[slot]) {
+            return newest;
+        }
+        acked[slot] = true;
+        ackedInWindow++;
+        metrics.bytes.add(dataLength(missing.chunk(seq)));
+        lossRate -= lossRate * LOSS_GAIN;
+        timers.cancel(retransmitTimers[slot]);
+        return newest < 0 || sentAt[slot] - sentAt[newest % window] > 0 ? seq : newest;
+    }
+
+    /**
+     * Retransmits the packets whose timer expired. A packet whose timer was started with a shorter RTO than the current
+     * one just gets its timer moved.
+     */
+    private void resendExpired() throws IOException {
+        long now = System.nanoTime();
+        expiredCount = 0;
+        timers.advance(now);
+        long timeout = retransmissionTimeout();
+        boolean expired = false;
+        for (int i = 0; i < expiredCount; i++) {
+            int slot = expiredSlots[i];
+            if (sentAt[slot] + timeout - now > 0) {
+                timers.schedule(retransmitTimers[slot], sentAt[slot] + timeout);
+                continue;
+            }
+            if (!expired) {
+                rtt.backoff();
+                congestion.onTimeout();
+                metrics.timeouts.increment();
+                expired = true;
+                updatePacingRate();
+            }
+            metrics.retransmissions.increment();
+            retransmitted[slot] = true;
+            countLoss(slot);
+            send(sequenceOf(slot));
+        }
+    }
+
+    /**
+     * @return Sequence number of the packet in flight in the given slot.
+     */
+    private int sequenceOf(int slot) {
+        return base + Math.floorMod(slot - base, window);
+    }
+
+    /**
+     * A timer is started with the current RTO. When it fires, a grown RTT or a backoff since then also applies to it,
+     * a shrunk one doesn't. The receiver may hold back an ACK for up to "ack.delay", that time is added on top.
+     */
+    private long retransmissionTimeout() {
+        return rtt.rtoNanos() + maxAckDelay;
+    }
+
+    /**
+     * @return The chunk as view on the mapped file, see {@link #createChunkWithChecksum(int)}.
+     */
+    private ByteBuffer send(int seq) throws IOException {
+        ByteBuffer chunk = createChunkWithChecksum(seq);
+        try {
+            channel.write(gather);
+        } catch (PortUnreachableException e) {
+            // receiver not up (yet), the retransmission timer takes care of it
+        }
+        long now = System.nanoTime();
+        sentAt[seq % window] = now;
+        timers.schedule(retransmitTimers[seq % window], now + retransmissionTimeout());
+        metrics.packetsSent.increment();
+        return chunk;
+    }
+
+    /**
+     * Fills the pooled header buffer for the given sequence number and puts header and payload into the gather array:
+     * the chunk as view on the mapped file or, if it shrinks, compressed. The checksum covers the header without
+     * checksum and the payload as sent.
+     *
+     * @return The chunk as view on the mapped file.
+     */
+    private ByteBuffer createChunkWithChecksum(int seq) throws IOException {
+        int chunk = missing.chunk(seq);
+        int length = dataLength(chunk);
+        ByteBuffer payload = file.slice(fileOffset(chunk), length);
+
+        byte flag = FileSender.setFlag(seq == totalPackets - 1 ? 2 : 1);
+        ByteBuffer packed = packer == null ? null : packer.pack(payload);
+        if (packed != null) {
+            flag |= ChunkCompression.FLAG;
+        }
+        ByteBuffer sent = packed == null ? payload : packed;
+        header.clear();
+        codec.encodeHeader(header, localPort, remotePort, transferId, seq, flag, sent.remaining());
+        codec.sign(header, HEADER_SIZE, sent);
+        gather[1] = sent;
+        return payload;
+    }
+
+    private long fileOffset(int chunk) {
+        return setup.rangeOffset + chunk * (long) chunkSize;
+    }
+
+    private int dataLength(int chunk) {
+        return (int) Math.min(chunkSize, setup.rangeOffset + setup.rangeLength - fileOffset(chunk));
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metadata a sender announces in the SYN that opens every UDP transfer, before any file data is sent. The receiver
+ * learns name and size of the file up front, so it can check the name, preallocate the output file and reject a
+ * transfer it can't take in its SYN-ACK instead of after the data has arrived.
+ * <p>
+ * A SYN is a data packet with {@link #SYN_FLAG} set in its flag byte; Selective Repeat uses sequence number
+ * {@link #SYN_SEQUENCE}, the alternating bit protocol alternating bit 0. Its payload: index of the first missing range
+ * wanted (4), name length (2), file name (UTF-8), file size (8), chunk size (2), window (4), packet checksum algorithm
+ * (1), file digest algorithm (1), {@link ChunkCompression} (1), number of files of a {@link FileBatch} (4, 0 for a
+ * single file), number of streams (2) and, if that isn't 0, the range of a parallel transfer: group id (4), range
+ * offset (8), range length (8), CRC32 of the range (4).
+ * <br>
+ * The SYN-ACK is a data packet with the same sequence and flag. Its payload: status (1), window (4) and chunk size (2)
+ * the receiver accepted, at most the ones asked for, the packet checksum algorithm (1) both sides use from then on,
+ * followed by one page of the chunk ranges the receiver is missing:
+ * index of the first range (4), total number of ranges (4), ranges in this page (2) and the ranges as first chunk (4)
+ * and number of chunks (4). A sender asks for further pages by repeating the SYN with a higher index.
+ * <p>
+ * The sender offers a {@link PacketChecksum} for all following data packets and ACKs. The receiver takes it if it is
+ * in its "checksum.accept" list, otherwise it answers with the first algorithm of that list. The file digest, if
+ * any, is checked after the last ACK: the sender repeats a packet with sequence {@link #DIGEST_SEQUENCE}, flag
+ * {@link #DIGEST_FLAG} and the digest (4) until the receiver answers with the same sequence, flag and the result (1).
+ */
+public class SessionSetup {
+
+    static final byte SYN_FLAG = 8;
+    static final int SYN_SEQUENCE = -1;
+    static final int MAX_NAME_SIZE = 255;
+    // smaller chunks than any sender uses only serve to blow up the chunk count
+    static final int MIN_CHUNK_SIZE = 64;
+
+    // status of the SYN-ACK
+    static final byte ACCEPTED = 0;
+    static final byte INVALID_NAME = 1;
+    static final byte NO_SPACE = 2;
+    static final byte UNSUPPORTED_CHECKSUM = 3;
+    static final byte UNSUPPORTED_COMPRESSION = 4;
+
+    // file digest exchanged after the last ACK
+    static final byte DIGEST_FLAG = 32;
+    static final int DIGEST_SEQUENCE = -3;
+    static final int DIGEST_SIZE = 4;
+    static final byte DIGEST_MATCH = 0;
+    static final byte DIGEST_MISMATCH = 1;
+
+    // algorithms a sender offers
+    private static final PacketChecksum OFFERED_CHECKSUM = PacketChecksum.fromProperty("checksum", PacketChecksum.CRC32C);
+    private static final PacketChecksum OFFERED_DIGEST = PacketChecksum.fromProperty("digest", PacketChecksum.NONE);
+    private static final ChunkCompression OFFERED_COMPRESSION = ChunkCompression.fromProperty("compress", ChunkCompression.NONE);
+    // algorithms a receiver accepts, in order of preference
+    private static final List<PacketChecksum> ACCEPTED_CHECKSUMS = acceptedChecksums(System.getProperty("checksum.accept", "crc32c,xxhash32,crc32"));
+
+    // size of the SYN-ACK in front of the ranges
+    static final int ANSWER_SIZE = 1 + 4 + 2 + 1 + 4 + 4 + 2;
+    static final int RANGE_SIZE = 4 + 4;
+
+    String fileName;
+    long fileSize;
+    int chunkSize;
+    int window;
+    byte checksum = OFFERED_CHECKSUM.id;
+    byte digest = OFFERED_DIGEST.id;
+    byte compression = OFFERED_COMPRESSION.id;
+
+    // files of a batch, whose manifest and contents make up the transferred bytes; 0 for a single file
+    int files = 0;
+
+    // range of a parallel transfer, streams is 0 for a whole file
+    int streams = 0;
+    int groupId = 0;
+    long rangeOffset = 0;
+    long rangeLength = 0;
+    int rangeChecksum = 0;
+
+    SessionSetup(String fileName, long fileSize, int chunkSize, int window) throws IOException {
+        if (fileName.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_SIZE) {
+            throw new IOException("File name longer than " + MAX_NAME_SIZE + " bytes: " + fileName);
+        }
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.rangeLength = fileSize;
+    }
+
+    /**
+     * Restricts the transfer to one range of the file as one of {@code streams} streams of a {@link ParallelSender}.
+     * The range is checked by its CRC32, there is no digest of the whole file.
+     */
+    SessionSetup range(int groupId, int streams, long offset, long length, int checksum) {
+        this.groupId = groupId;
+        this.streams = streams;
+        this.rangeOffset = offset;
+        this.rangeLength = length;
+        this.rangeChecksum = checksum;
+        this.digest = PacketChecksum.NONE.id;
+        return this;
+    }
+
+    /**
+     * Announces the transfer as a {@link FileBatch} of the given number of files, named after its directory.
+     */
+    SessionSetup batch(int files) {
+        this.files = files;
+        return this;
+    }
+
+    boolean isBatch() {
+        return files != 0;
+    }
+
+    boolean isRange() {
+        return streams != 0;
+    }
+
+    /**
+     * @return Number of packets needed for the bytes to transfer, at least one so even an empty file has an end.
+     */
+    int chunks() {
+        return (int) Math.max(1, (rangeLength + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Puts the SYN payload at the position of the buffer.
+     *
+     * @param fromRange Index of the first missing range the receiver shall answer with.
+     */
+    void writeSyn(ByteBuffer payload, int fromRange) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        payload.putInt(fromRange).putShort((short) name.length).put(name);
+        payload.putLong(fileSize).putShort((short) chunkSize).putInt(window).put(checksum).put(digest).put(compression).putInt(files).putShort((short) streams);
+        if (isRange()) {
+            payload.putInt(groupId).putLong(rangeOffset).putLong(rangeLength).putInt(rangeChecksum);
+        }
+    }
+
+    /**
+     * Reads a SYN payload starting behind the index of the first missing range.
+     *
+     * @return The setup or null if the payload is malformed.
+     */
+    static SessionSetup readSyn(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 2) {
+            return null;
+        }
+        int nameLength = payload.getShort() & 0xFFFF;
+        if (nameLength > MAX_NAME_SIZE || payload.remaining() < nameLength + 8 + 2 + 4 + 1 + 1 + 1 + 4 + 2) {
+            return null;
+        }
+        byte[] name = new byte[nameLength];
+        payload.get(name);
+        SessionSetup setup = new SessionSetup(new String(name, StandardCharsets.UTF_8), payload.getLong(),
+                payload.getShort() & 0xFFFF, payload.getInt());
+        setup.checksum = payload.get();
+        setup.digest = payload.get();
+        setup.compression = payload.get();
+        setup.files = payload.getInt();
+        int streams = payload.getShort() & 0xFFFF;
+        if (streams != 0) {
+            if (payload.remaining() < 4 + 8 + 8 + 4) {
+                return null;
+            }
+            setup.range(payload.getInt(), streams, payload.getLong(), payload.getLong(), payload.getInt());
+        }
+        if (setup.chunkSize < MIN_CHUNK_SIZE || setup.files < 0 || (setup.isBatch() && setup.isRange()) || setup.fileSize < 0
+                || setup.rangeOffset < 0 || setup.rangeLength < 0
+                || setup.rangeOffset + setup.rangeLength > setup.fileSize
+                || setup.rangeLength / setup.chunkSize >= Integer.MAX_VALUE) {
+            return null;
+        }
+        return setup;
+    }
+
+    /**
+     * Checks whether a receiver can take the transfer at all, before anything is written.
+     *
+     * @return {@link #ACCEPTED} or the reason to reject the transfer.
+     */
+    byte check() {
+        if (!validName(fileName)) {
+            return INVALID_NAME;
+        }
+        if (PacketChecksum.byId(digest) == null) {
+            return UNSUPPORTED_CHECKSUM;
+        }
+        if (ChunkCompression.byId(compression) == null) {
+            return UNSUPPORTED_COMPRESSION;
+        }
+        return ACCEPTED;
+    }
+
+    /**
+     * @return true for a plain file name the receiver can put into its src folder, no path.
+     */
+    static boolean validName(String fileName) {
+        return !fileName.isEmpty() && !fileName.equals(".") && !fileName.equals("..") && fileName.indexOf('/') < 0
+                && fileName.indexOf('\\') < 0 && fileName.indexOf('\0') < 0;
+    }
+
+    /**
+     * @return The packet checksum for the session: the offered one if the receiver accepts it, else its preference.
+     */
+    PacketChecksum negotiateChecksum() {
+        PacketChecksum offered = PacketChecksum.byId(checksum);
+        return ACCEPTED_CHECKSUMS.contains(offered) ? offered : ACCEPTED_CHECKSUMS.get(0);
+    }
+
+    PacketChecksum digestAlgorithm() {
+        return PacketChecksum.byId(digest);
+    }
+
+    ChunkCompression compressionAlgorithm() {
+        return ChunkCompression.byId(compression);
+    }
+
+    private static List<PacketChecksum> acceptedChecksums(String names) {
+        List<PacketChecksum> accepted = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (!name.isBlank()) {
+                accepted.add(PacketChecksum.byName(name));
+            }
+        }
+        if (accepted.isEmpty()) {
+            throw new IllegalArgumentException("checksum.accept lists no algorithm");
+        }
+        return accepted;
+    }
+
+    /**
+     * @param missingBytes Bytes the output still needs, less than the file size for resumed transfers.
+     * @return {@link #ACCEPTED} or {@link #NO_SPACE}.
+     */
+    static byte checkSpace(Path directory, long missingBytes) throws IOException {
+        return Files.getFileStore(directory).getUsableSpace() < missingBytes ? NO_SPACE : ACCEPTED;
+    }
+
+    static String statusText(byte status) {
+        switch (status) {
+            case ACCEPTED:
+                return "accepted";
+            case INVALID_NAME:
+                return "invalid file name";
+            case NO_SPACE:
+                return "not enough space on the receiver";
+            case UNSUPPORTED_CHECKSUM:
+                return "checksum algorithm not supported";
+            case UNSUPPORTED_COMPRESSION:
+                return "compression not supported";
+            default:
+                return "rejected (" + status + ")";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return fileName + " (" + fileSize + " bytes"
+                + (isBatch() ? ", batch of " + files + " files" : "")
+                + (isRange() ? ", range " + rangeOffset + "+" + rangeLength + " of " + streams + " streams" : "")
+                + ", chunk size " + chunkSize + ", window " + window + ", checksum " + PacketChecksum.byId(checksum)
+                + (digest != PacketChecksum.NONE.id ? ", digest " + PacketChecksum.byId(digest) : "")
+                + (compression != ChunkCompression.NONE.id ? ", compression " + ChunkCompression.byId(compression) : "") + ")";
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes a received file chunk by chunk straight to disk, so memory usage does not depend on the file size.
+ * Data goes into a uniquely named ".part" file first which is renamed to "src/rec_[protocol]_[file name]" by
+ * {@link #finish()}, so concurrent transfers of the same file don't write into each other. A transfer that may be
+ * resumed later uses a part file with a fixed name instead, see {@link #resume}.
+ * <p>
+ * Positional writes may come from several threads at once, e.g. the streams of a {@link ReassembledFile}.
+ */
+public class StreamingFileWriter implements Closeable {
+
+    private final Path target;
+    private final Path part;
+    private final FileChannel channel;
+    private final AtomicLong size = new AtomicLong();
+
+    public StreamingFileWriter(String fileName, String protocol) throws IOException {
+        this.target = target(fileName, protocol);
+        this.part = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".", ".part");
+        this.channel = FileChannel.open(part, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private StreamingFileWriter(Path target, Path part, FileChannel channel) throws IOException {
+        this.target = target;
+        this.part = part;
+        this.channel = channel;
+        this.size.set(channel.size());
+    }
+
+    /**
+     * @return The final name of a received file, where an earlier transfer of it left its copy.
+     */
+    static Path target(String fileName, String protocol) {
+        return Paths.get("src/rec_" + protocol + "_" + fileName.trim());
+    }
+
+    /**
+     * Opens the ".part" file of an earlier, interrupted transfer of the file or creates it. Unlike the part files of
+     * the constructor its name "src/rec_[protocol]_[file name].part" is fixed, so a later transfer finds it again.
+     * The part file stays locked until the writer is closed.
+     *
+     * @return null if another transfer is writing to that part file right now.
+     */
+    public static StreamingFileWriter resume(String fileName, String protocol) throws IOException {
+        Path target = target(fileName, protocol);
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.tryLock() != null) {
+                return new StreamingFileWriter(target, part, channel);
+            }
+        } catch (OverlappingFileLockException e) {
+            // locked by another transfer inside this JVM
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Appends the given bytes behind the data written so far.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        write(data, offset, length, size.get());
+    }
+
+    /**
+     * Appends the remaining bytes of the buffer behind the data written so far.
+     */
+    public void write(ByteBuffer data) throws IOException {
+        write(data, size.get());
+    }
+
+    /**
+     * Writes the given bytes at the given position of the output file.
+     */
+    public void write(byte[] data, int offset, int length, long position) throws IOException {
+        write(ByteBuffer.wrap(data, offset, length), position);
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer at the given position of the output file.
+     */
+    public void write(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        size.accumulateAndGet(position, Math::max);
+    }
+
+    /**
+     * Reads back written bytes from the given position of the output file until the buffer is full.
+     */
+    public void read(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position);
+            if (read < 0) {
+                throw new IOException("Read beyond the end of " + part);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Appends up to {@code count} bytes read from the source behind the data written so far. For a socket the kernel
+     * may move the data into the file without copying it through the heap.
+     *
+     * @return Number of bytes transferred, 0 at the end of the source.
+     */
+    public long transferFrom(ReadableByteChannel source, long count) throws IOException {
+        long position = size.get();
+        long transferred = channel.transferFrom(source, position, count);
+        size.accumulateAndGet(position + transferred, Math::max);
+        return transferred;
+    }
+
+    /**
+     * Writes up to {@code count} bytes of the output file from the given position on to the target, within the kernel
+     * where it can.
+     *
+     * @return Number of bytes transferred.
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, count, target);
+    }
+
+    /**
+     * Copies {@code count} bytes of another file from {@code sourcePosition} on to the given position of the output
+     * file, within the kernel where it can.
+     */
+    public void copy(FileChannel source, long sourcePosition, long count, long position) throws IOException {
+        source.position(sourcePosition);
+        for (long end = position + count; position < end; ) {
+            long copied = channel.transferFrom(source, position, end - position);
+            if (copied <= 0) {
+                throw new IOException("Copy beyond the end of the source");
+            }
+            position += copied;
+        }
+        size.accumulateAndGet(position, Math::max);
+    }
+
+    /**
+     * Extends the output file to the size announced by the sender, so it is reserved before the data arrives. Data
+     * written so far is kept and appending still continues behind it. On file systems with sparse files only the
+     * length is set, the blocks are allocated by the writes.
+     */
+    public void preallocate(long fileSize) throws IOException {
+        if (fileSize > channel.size()) {
+            channel.write(ByteBuffer.allocate(1), fileSize - 1);
+        }
+    }
+
+    /**
+     * Cuts the output file to the given size, e.g. to drop the data of a part file that can't be resumed.
+     */
+    public void truncate(long newSize) throws IOException {
+        channel.truncate(newSize);
+        size.set(newSize);
+    }
+
+    /**
+     * @return The file the data is written to until {@link #finish()}.
+     */
+    public Path part() {
+        return part;
+    }
+
+    /**
+     * @return Number of bytes up to the end of the data written so far.
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Closes the output and renames the ".part" file to its final name.
+     */
+    public void finish() throws IOException {
+        if (channel.size() > size.get()) {
+            // preallocated for more than has been written
+            channel.truncate(size.get());
+        }
+        channel.close();
+        try {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Closes the output and throws away everything received so far.
+     */
+    public void abort() throws IOException {
+        channel.close();
+        Files.deleteIfExists(part);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+/**
+ * Hashed timing wheel (Varghese and Lauck): timers hang in the bucket of the tick they expire in, modulo the number of
+ * buckets, so starting, moving and cancelling a timer is O(1) however many are running. Advancing the wheel only
+ * looks at the buckets of the ticks that have passed; a timer further away than one turn of the wheel stays in its
+ * bucket until the turn it is due in.
+ * <p>
+ * The timers are intrusive list nodes created once by their owner and rescheduled as often as needed, so the wheel
+ * allocates nothing while it runs. Times are {@link System#nanoTime()} values, a timer fires with the first tick at or
+ * after its deadline. The tick is set by system property "timer.tick" (microseconds, default 100). Not thread safe,
+ * a wheel belongs to the event loop that advances it.
+ */
+public class TimingWheel {
+
+    /**
+     * A timer that can be scheduled on one wheel at a time.
+     */
+    public static class Timer {
+        private final Runnable action;
+        private long deadline;
+        private Timer previous;
+        private Timer next;
+        private Timer nextFired;
+        // taken off the wheel as expired, the action hasn't run yet
+        private boolean expired;
+        private int bucket = -1;
+
+        /**
+         * @param action Run by {@link TimingWheel#advance} once the timer has expired.
+         */
+        public Timer(Runnable action) {
+            this.action = action;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timer[] buckets;
+    private final int mask;
+    // last tick that has been processed
+    private long tick;
+    private int scheduled = 0;
+
+    public TimingWheel() {
+        this(Long.getLong("timer.tick", 100) * 1000, 1024);
+    }
+
+    /**
+     * @param buckets Number of buckets, rounded up to a power of two.
+     */
+    public TimingWheel(long tickNanos, int buckets) {
+        this.tickNanos = Math.max(1, tickNanos);
+        this.buckets = new Timer[Integer.highestOneBit(Math.max(1, buckets) * 2 - 1)];
+        this.mask = this.buckets.length - 1;
+        this.tick = System.nanoTime() / this.tickNanos;
+    }
+
+    /**
+     * Starts the timer, or moves it if it is already running.
+     */
+    public void schedule(Timer timer, long deadline) {
+        cancel(timer);
+        // never into a tick that has been processed already
+        long due = Math.max(tick + 1, ceilDiv(deadline, tickNanos));
+        int index = (int) (due & mask);
+        timer.deadline = deadline;
+        timer.bucket = index;
+        timer.previous = null;
+        timer.next = buckets[index];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        buckets[index] = timer;
+        scheduled++;
+    }
+
+    public void cancel(Timer timer) {
+        timer.expired = false;
+        unlink(timer);
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.bucket < 0) {
+            return;
+        }
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            buckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.bucket = -1;
+        scheduled--;
+    }
+
+    /**
+     * Runs the actions of all timers that have expired by {@code now}. An action may schedule timers again, a timer
+     * scheduled for a time that has passed already fires with the next tick. A timer rescheduled or cancelled by the
+     * action of another one that expired at the same time doesn't fire.
+     *
+     * @return Number of timers that fired.
+     */
+    public int advance(long now) {
+        long target = now / tickNanos;
+        if (target <= tick) {
+            return 0;
+        }
+        // take the expired timers off the wheel first, the actions may change the buckets
+        Timer fired = null;
+        // after a long pause every bucket is looked at once
+        long ticks = Math.min(target - tick, buckets.length);
+        for (long t = target - ticks + 1; t <= target; t++) {
+            for (Timer timer = buckets[(int) (t & mask)], next; timer != null; timer = next) {
+                next = timer.next;
+                if (timer.deadline - now <= 0) {
+                    unlink(timer);
+                    timer.expired = true;
+                    timer.nextFired = fired;
+                    fired = timer;
+                }
+            }
+        }
+        tick = target;
+
+        int count = 0;
+        while (fired != null) {
+            Timer timer = fired;
+            fired = timer.nextFired;
+            timer.nextFired = null;
+            if (timer.expired) {
+                timer.expired = false;
+                count++;
+                timer.action.run();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Time of the first tick a timer fires in, {@link Long#MAX_VALUE} if none is running. Timers more than one
+     * turn ahead are not looked at, the time after a turn is returned then to have a look again.
+     */
+    public long nextDeadline() {
+        if (scheduled == 0) {
+            return Long.MAX_VALUE;
+        }
+        for (long t = tick + 1; t <= tick + buckets.length; t++) {
+            for (Timer timer = buckets[(int) (t & mask)]; timer != null; timer = timer.next) {
+                if (timer.deadline - t * tickNanos <= 0) {
+                    return t * tickNanos;
+                }
+            }
+        }
+        return (tick + buckets.length) * tickNanos;
+    }
+
+    public int size() {
+        return scheduled;
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+}
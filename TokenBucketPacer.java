@@ -0,0 +1,70 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+/**
+ * Spreads packets evenly over time instead of sending a whole window back to back. Tokens (bytes) accumulate at the
+ * configured rate up to a small burst; a packet may be sent once enough tokens are available. All times are
+ * {@link System#nanoTime()} values, so the pacer works below the millisecond resolution of socket timeouts.
+ */
+public class TokenBucketPacer {
+
+    private final long burstBytes;
+    private double bytesPerNano = Double.POSITIVE_INFINITY;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    /**
+     * @param burstBytes Number of bytes that may be sent back to back after an idle period.
+     */
+    public TokenBucketPacer(long burstBytes) {
+        this.burstBytes = burstBytes;
+        this.tokens = burstBytes;
+    }
+
+    /**
+     * @param bytesPerSecond New rate, {@link Double#POSITIVE_INFINITY} to disable pacing.
+     */
+    public void setRate(double bytesPerSecond) {
+        refill(System.nanoTime());
+        this.bytesPerNano = bytesPerSecond / 1e9;
+    }
+
+    public double rate() {
+        return bytesPerNano * 1e9;
+    }
+
+    /**
+     * @return Nanoseconds until a packet of the given size may be sent, 0 if it may be sent right away.
+     */
+    public long delay(int bytes, long now) {
+        refill(now);
+        if (tokens >= bytes) {
+            return 0;
+        }
+        return (long) Math.ceil((bytes - tokens) / bytesPerNano);
+    }
+
+    /**
+     * Takes the tokens for a packet that has been sent.
+     */
+    public void consume(int bytes) {
+        tokens -= bytes;
+    }
+
+    private void refill(long now) {
+        if (Double.isInfinite(bytesPerNano)) {
+            tokens = burstBytes;
+        } else {
+            tokens = Math.min(burstBytes, tokens + (now - last) * bytesPerNano);
+        }
+        last = now;
+    }
+}
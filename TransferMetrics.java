@@ -0,0 +1,360 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters and histograms of one transfer, readable while it runs. Every count and sample also goes into
+ * {@link #TOTAL}, the aggregate of all sessions of the process. Counters are {@link LongAdder}s, so the sessions of the
+ * receiver and the streams of a {@link ParallelSender} update the aggregate without contending on one cache line.
+ * <p>
+ * Open sessions and the aggregate are registered as MBeans "FileTransfer:type=Transfer,name=..." (system property
+ * "metrics.jmx=false" turns that off). Every "metrics.interval" milliseconds (default 1000) a daemon thread samples
+ * the goodput of every session and, if "metrics.file" is set, replaces that file with a snapshot of all of them.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    private static final boolean JMX = !"false".equals(System.getProperty("metrics.jmx"));
+    private static final long INTERVAL = Math.max(1, Long.getLong("metrics.interval", 1000));
+    private static final String FILE = System.getProperty("metrics.file");
+    private static final Map<String, TransferMetrics> OPEN = new ConcurrentHashMap<>();
+    private static final AtomicInteger SESSIONS = new AtomicInteger();
+
+    static final TransferMetrics TOTAL = new TransferMetrics("total", null);
+
+    static {
+        TOTAL.register();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(TransferMetrics::report, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    final Count packetsSent;
+    final Count packetsReceived;
+    // payload bytes delivered: acknowledged on the sender, written on the receiver
+    final Count bytes;
+    final Count retransmissions;
+    final Count timeouts;
+    final Count corrupt;
+    final Count duplicates;
+    final Count outOfOrder;
+    // packets the unreliable channel dropped on the receiver
+    final Count lost;
+    final Count recovered;
+    final Count acksSent;
+    final Count acksReceived;
+    // datagrams the receiver dropped because its socket send buffer was full
+    final Count sendDropped;
+
+    private final String name;
+    private final TransferMetrics total;
+    private final ConcurrentHistogram rtt = new ConcurrentHistogram();
+    private final ConcurrentHistogram ackDelay = new ConcurrentHistogram();
+    private final ConcurrentHistogram goodput = new ConcurrentHistogram();
+    private ObjectName objectName;
+    // goodput sampling, only touched by the reporter thread
+    private long lastBytes = 0;
+    private volatile long lastGoodput = 0;
+
+    private TransferMetrics(String name, TransferMetrics total) {
+        this.name = name;
+        this.total = total;
+        packetsSent = new Count(total == null ? null : total.packetsSent);
+        packetsReceived = new Count(total == null ? null : total.packetsReceived);
+        bytes = new Count(total == null ? null : total.bytes);
+        retransmissions = new Count(total == null ? null : total.retransmissions);
+        timeouts = new Count(total == null ? null : total.timeouts);
+        corrupt = new Count(total == null ? null : total.corrupt);
+        duplicates = new Count(total == null ? null : total.duplicates);
+        outOfOrder = new Count(total == null ? null : total.outOfOrder);
+        lost = new Count(total == null ? null : total.lost);
+        recovered = new Count(total == null ? null : total.recovered);
+        acksSent = new Count(total == null ? null : total.acksSent);
+        acksReceived = new Count(total == null ? null : total.acksReceived);
+        sendDropped = new Count(total == null ? null : total.sendDropped);
+    }
+
+    /**
+     * Creates and publishes the metrics of a new session, to be {@link #close() closed} when it ends.
+     *
+     * @param name Describes the session, e.g. protocol and peer; a number is appended to keep it unique.
+     */
+    static TransferMetrics open(String name) {
+        TransferMetrics metrics = new TransferMetrics(name + " (" + SESSIONS.incrementAndGet() + ")", TOTAL);
+        OPEN.put(metrics.name, metrics);
+        metrics.register();
+        return metrics;
+    }
+
+    /**
+     * Withdraws the session from JMX and the snapshots, its counts stay in {@link #TOTAL}.
+     */
+    void close() {
+        if (OPEN.remove(name) != null && objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+                // already gone
+            }
+        }
+    }
+
+    void recordRtt(long nanos) {
+        rtt.record(nanos / 1000);
+        if (total != null) {
+            total.rtt.record(nanos / 1000);
+        }
+    }
+
+    /**
+     * Records how long the receiver held back an ACK after the first packet it acknowledges arrived.
+     */
+    void recordAckDelay(long nanos) {
+        ackDelay.record(nanos / 1000);
+        if (total != null) {
+            total.ackDelay.record(nanos / 1000);
+        }
+    }
+
+    private void register() {
+        if (!JMX) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("FileTransfer:type=Transfer,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            System.err.println("Metrics of " + name + " not published: " + e);
+        }
+    }
+
+    /**
+     * Samples the goodput of every session and writes the snapshot file.
+     */
+    private static void report() {
+        for (TransferMetrics metrics : OPEN.values()) {
+            metrics.sampleGoodput();
+        }
+        if (!OPEN.isEmpty()) {
+            TOTAL.sampleGoodput();
+        }
+        if (FILE != null) {
+            try {
+                writeSnapshot(Paths.get(FILE));
+            } catch (IOException e) {
+                System.err.println("Metrics snapshot not written: " + e);
+            }
+        }
+    }
+
+    private void sampleGoodput() {
+        long now = bytes.get();
+        lastGoodput = (now - lastBytes) * 8 / INTERVAL;
+        lastBytes = now;
+        goodput.record(lastGoodput);
+    }
+
+    /**
+     * Replaces the file with one line per open session and one for the aggregate, so a reader never sees a partly
+     * written snapshot.
+     */
+    static void writeSnapshot(Path file) throws IOException {
+        StringBuilder snapshot = new StringBuilder("# ").append(Instant.now()).append('\n');
+        TOTAL.appendTo(snapshot);
+        for (TransferMetrics metrics : OPEN.values()) {
+            metrics.appendTo(snapshot);
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, snapshot.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void appendTo(StringBuilder line) {
+        line.append(name)
+                .append(" sent=").append(packetsSent.get())
+                .append(" received=").append(packetsReceived.get())
+                .append(" bytes=").append(bytes.get())
+                .append(" retransmissions=").append(retransmissions.get())
+                .append(" timeouts=").append(timeouts.get())
+                .append(" corrupt=").append(corrupt.get())
+                .append(" duplicates=").append(duplicates.get())
+                .append(" outOfOrder=").append(outOfOrder.get())
+                .append(" lost=").append(lost.get())
+                .append(" recovered=").append(recovered.get())
+                .append(" acksSent=").append(acksSent.get())
+                .append(" acksReceived=").append(acksReceived.get())
+                .append(" sendDropped=").append(sendDropped.get())
+                .append(" rttP50us=").append(rtt.percentile(50))
+                .append(" rttP99us=").append(rtt.percentile(99))
+                .append(" rttMaxUs=").append(rtt.max())
+                .append(" ackDelayP99us=").append(ackDelay.percentile(99))
+                .append(" goodputKbits=").append(lastGoodput)
+                .append('\n');
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getCorruptPackets() {
+        return corrupt.get();
+    }
+
+    @Override
+    public long getDuplicatePackets() {
+        return duplicates.get();
+    }
+
+    @Override
+    public long getOutOfOrderPackets() {
+        return outOfOrder.get();
+    }
+
+    @Override
+    public long getLostPackets() {
+        return lost.get();
+    }
+
+    @Override
+    public long getRecoveredPackets() {
+        return recovered.get();
+    }
+
+    @Override
+    public long getAcksSent() {
+        return acksSent.get();
+    }
+
+    @Override
+    public long getAcksReceived() {
+        return acksReceived.get();
+    }
+
+    @Override
+    public long getSendDroppedPackets() {
+        return sendDropped.get();
+    }
+
+    @Override
+    public double getRetransmissionRate() {
+        long sent = packetsSent.get();
+        return sent == 0 ? 0 : retransmissions.get() / (double) sent;
+    }
+
+    @Override
+    public long getRttP50Micros() {
+        return rtt.percentile(50);
+    }
+
+    @Override
+    public long getRttP99Micros() {
+        return rtt.percentile(99);
+    }
+
+    @Override
+    public long getRttMaxMicros() {
+        return rtt.max();
+    }
+
+    @Override
+    public long getAckDelayP99Micros() {
+        return ackDelay.percentile(99);
+    }
+
+    @Override
+    public long getGoodputKbits() {
+        return lastGoodput;
+    }
+
+    @Override
+    public long getGoodputP50Kbits() {
+        return goodput.percentile(50);
+    }
+
+    /**
+     * Counter of a session that adds up into the same counter of the aggregate.
+     */
+    static final class Count {
+        private final LongAdder adder = new LongAdder();
+        private final Count total;
+
+        Count(Count total) {
+            this.total = total;
+        }
+
+        void increment() {
+            adder.increment();
+            if (total != null) {
+                total.adder.increment();
+            }
+        }
+
+        void add(long amount) {
+            adder.add(amount);
+            if (total != null) {
+                total.adder.add(amount);
+            }
+        }
+
+        long get() {
+            return adder.sum();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+/**
+ * Management interface of {@link TransferMetrics}, one MBean per open session plus one for all sessions of the process.
+ * Times are in microseconds, rates in kbit/s.
+ */
+public interface TransferMetricsMBean {
+
+    String getName();
+
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    long getBytes();
+
+    long getRetransmissions();
+
+    long getTimeouts();
+
+    long getCorruptPackets();
+
+    long getDuplicatePackets();
+
+    long getOutOfOrderPackets();
+
+    long getLostPackets();
+
+    long getRecoveredPackets();
+
+    long getAcksSent();
+
+    long getAcksReceived();
+
+    /**
+     * @return Datagrams dropped because the socket send buffer was full.
+     */
+    long getSendDroppedPackets();
+
+    /**
+     * @return Retransmissions per sent packet.
+     */
+    double getRetransmissionRate();
+
+    long getRttP50Micros();
+
+    long getRttP99Micros();
+
+    long getRttMaxMicros();
+
+    long getAckDelayP99Micros();
+
+    /**
+     * @return Goodput of the last reporting interval.
+     */
+    long getGoodputKbits();
+
+    long getGoodputP50Kbits();
+}
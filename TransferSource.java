@@ -0,0 +1,37 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The bytes a sender transmits: a single {@link MappedFileSource} or a {@link FileBatch} of many files.
+ */
+public interface TransferSource extends Closeable {
+
+    long size();
+
+    /**
+     * Returns a buffer whose remaining bytes are the given range. The returned buffer may be reused by the next call,
+     * so it must be consumed (or its position reset) before asking for the next range.
+     */
+    ByteBuffer slice(long position, int length) throws IOException;
+
+    /**
+     * Writes up to {@code count} bytes from the given position on to the target, for files without a copy through
+     * the heap where the kernel can.
+     *
+     * @return Number of bytes written.
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+}
@@ -10,51 +10,335 @@
  */
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Simulates an unreliable link between sender and receiver. Every datagram passed to {@link #transmit} may get
+ * <ul>
+ * <li>lost, independently or in bursts following the Gilbert-Elliott model (a good and a bad state with their own
+ * loss probability),</li>
+ * <li>duplicated,</li>
+ * <li>corrupted by flipping one random bit,</li>
+ * <li>reordered by holding it back for a while,</li>
+ * <li>delayed by a fixed latency plus uniform jitter,</li>
+ * <li>queued behind earlier datagrams by a bandwidth cap, and dropped once that queue gets too long.</li>
+ * </ul>
+ * All decisions come from a {@link SplittableRandom} with a known seed, so a run with the same seed and the same
+ * sequence of datagrams loses, duplicates and corrupts exactly the same packets.
+ * <p>
+ * Without delay, jitter, reordering or bandwidth cap datagrams are handed to the {@link Sink} right away on the calling
+ * thread without any allocation. Otherwise they are copied and delivered by a daemon thread of the channel.
+ * {@link #transmit} must always be called by the same thread.
+ */
 public class UnreliableChannel {
-    private static int lost = 0;
-    private static int manipulated =0;
-    private static int duplicated = 0;
-
-
-    public static DatagramPacket checkIfSomethingHappened(DatagramPacket packetIn, double pLose, double pDup, double pMan) {
-        double pLoseCalc = Math.random();
-        double pDupCalc = Math.random();
-        double pManCalc = Math.random();
-        DatagramPacket result = packetIn;
-        if (pLoseCalc < pLose){
-            byte[] data = new byte[1400];
-            result.setData(data);
-            lost ++;
-            //System.out.println("got lost package number "+lost );
-        }
-        else if (pDupCalc < pDup){
+
+    /**
+     * Receiver of the datagrams that made it through the channel.
+     */
+    public interface Sink {
+        /**
+         * The remaining bytes of the buffer are the datagram, they have to be consumed before returning.
+         * May be called by the delivery thread of the channel.
+         */
+        void deliver(ByteBuffer datagram) throws IOException;
+
+        /**
+         * Called for every datagram the channel dropped.
+         */
+        default void lost() {
+        }
+    }
+
+    private static final long MILLI = 1_000_000L;
+
+    private final long seed;
+    private final SplittableRandom random;
+
+    private double pLose = 0;
+    private double pDup = 0;
+    private double pMan = 0;
+    private double pReorder = 0;
+    private long reorderNanos = 0;
+    private long delayNanos = 0;
+    private long jitterNanos = 0;
+    private long bitsPerSecond = 0;
+    private long queueNanos = 200 * MILLI;
+    private double pGoodToBad = 0;
+    private double pBadToGood = 1;
+    private double pLoseBad = 1;
+
+    private boolean bad = false;
+    private long linkFree = 0;
+    private long sequence = 0;
+
+    private DelayQueue<Pending> pending;
+    private volatile boolean closed = false;
+    private final ConcurrentLinkedQueue<Pending> free = new ConcurrentLinkedQueue<>();
+
+    private int lost = 0;
+    private int duplicated = 0;
+    private int manipulated = 0;
+    private int reordered = 0;
+    private int overflowed = 0;
+
+    /**
+     * Creates a channel that delivers everything unchanged until it is configured.
+     */
+    public UnreliableChannel(long seed) {
+        this.seed = seed;
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Creates a channel configured by system properties, every impairment is off unless given:
+     * "channel.seed", "channel.loss", "channel.dup", "channel.corrupt" (probabilities), "channel.reorder" and
+     * "channel.reorder.delay" (probability, ms), "channel.delay" and "channel.jitter" (ms), "channel.rate" (kbit/s)
+     * and "channel.queue" (ms), "channel.burst.enter", "channel.burst.leave" and "channel.burst.loss" (probabilities
+     * of the Gilbert-Elliott model).
+     *
+     * @param pLose Loss probability if "channel.loss" is not set.
+     * @param pDup  Duplication probability if "channel.dup" is not set.
+     * @param pMan  Corruption probability if "channel.corrupt" is not set.
+     */
+    public static UnreliableChannel fromProperties(double pLose, double pDup, double pMan) {
+        return fromProperties(Long.getLong("channel.seed", System.nanoTime()), pLose, pDup, pMan);
+    }
+
+    /**
+     * Like {@link #fromProperties(double, double, double)}, but with the given seed instead of "channel.seed".
+     */
+    public static UnreliableChannel fromProperties(long seed, double pLose, double pDup, double pMan) {
+        UnreliableChannel channel = new UnreliableChannel(seed);
+        channel.loss(doubleProperty("channel.loss", pLose))
+                .duplication(doubleProperty("channel.dup", pDup))
+                .corruption(doubleProperty("channel.corrupt", pMan))
+                .reordering(doubleProperty("channel.reorder", 0), Long.getLong("channel.reorder.delay", 10))
+                .delay(Long.getLong("channel.delay", 0), Long.getLong("channel.jitter", 0))
+                .bandwidth(Long.getLong("channel.rate", 0) * 1000, Long.getLong("channel.queue", 200));
+        double enter = doubleProperty("channel.burst.enter", 0);
+        if (enter > 0) {
+            channel.burstLoss(enter, doubleProperty("channel.burst.leave", 0.25), doubleProperty("channel.burst.loss", 1));
+        }
+        return channel;
+    }
+
+    private static double doubleProperty(String key, double defaultValue) {
+        String value = System.getProperty(key);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public UnreliableChannel loss(double probability) {
+        this.pLose = probability;
+        return this;
+    }
+
+    public UnreliableChannel duplication(double probability) {
+        this.pDup = probability;
+        return this;
+    }
+
+    public UnreliableChannel corruption(double probability) {
+        this.pMan = probability;
+        return this;
+    }
+
+    /**
+     * @param probability Probability of a datagram to be held back.
+     * @param millis      How long it is held back, datagrams sent meanwhile overtake it.
+     */
+    public UnreliableChannel reordering(double probability, long millis) {
+        this.pReorder = probability;
+        this.reorderNanos = millis * MILLI;
+        return this;
+    }
+
+    /**
+     * @param millis       One-way latency of every datagram.
+     * @param jitterMillis Maximum random extra latency, uniformly distributed.
+     */
+    public UnreliableChannel delay(long millis, long jitterMillis) {
+        this.delayNanos = millis * MILLI;
+        this.jitterNanos = jitterMillis * MILLI;
+        return this;
+    }
+
+    /**
+     * @param bitsPerSecond Capacity of the link, 0 for unlimited.
+     * @param queueMillis   Datagrams that would have to wait longer than this for the link are dropped.
+     */
+    public UnreliableChannel bandwidth(long bitsPerSecond, long queueMillis) {
+        this.bitsPerSecond = bitsPerSecond;
+        this.queueNanos = queueMillis * MILLI;
+        return this;
+    }
+
+    /**
+     * Enables the Gilbert-Elliott model: in the good state datagrams get lost with the probability of {@link #loss},
+     * in the bad state with {@code lossInBad}.
+     *
+     * @param goodToBad Probability per datagram to switch from the good to the bad state.
+     * @param badToGood Probability per datagram to switch back, 1 / mean burst length.
+     */
+    public UnreliableChannel burstLoss(double goodToBad, double badToGood, double lossInBad) {
+        this.pGoodToBad = goodToBad;
+        this.pBadToGood = badToGood;
+        this.pLoseBad = lossInBad;
+        return this;
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+    /**
+     * Sends a datagram through the channel. The remaining bytes of the buffer are the datagram, a corrupted bit is
+     * flipped in place.
+     */
+    public void transmit(ByteBuffer datagram, Sink sink) throws IOException {
+        if (pGoodToBad > 0) {
+            bad = bad ? random.nextDouble() >= pBadToGood : random.nextDouble() < pGoodToBad;
+        }
+        if (random.nextDouble() < (bad ? pLoseBad : pLose)) {
+            lost++;
+            sink.lost();
+            return;
+        }
+        if (random.nextDouble() < pMan && datagram.hasRemaining()) {
+            manipulated++;
+            int bit = random.nextInt(datagram.remaining() * 8);
+            int index = datagram.position() + bit / 8;
+            datagram.put(index, (byte) (datagram.get(index) ^ (1 << (bit % 8))));
+        }
+        boolean duplicate = random.nextDouble() < pDup;
+        if (duplicate) {
             duplicated++;
-            //System.out.println("\n\n\ngot duplicated package number "+duplicated );
-            DatagramSocket socket = null;
-            try {
-                socket = new DatagramSocket();
-            } catch (SocketException e) {
-                e.printStackTrace();
+        }
+
+        for (int copies = duplicate ? 2 : 1; copies > 0; copies--) {
+            long latency = latency(datagram.remaining());
+            if (latency < 0) {
+                overflowed++;
+                sink.lost();
+            } else if (latency == 0) {
+                int position = datagram.position();
+                sink.deliver(datagram);
+                datagram.position(position);
+            } else {
+                schedule(datagram, sink, latency);
             }
-            try {
-                socket.send(result);
-            } catch (IOException e) {
-                e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Nanoseconds until the datagram arrives, 0 for right away or -1 if the link queue is full.
+     */
+    private long latency(int length) {
+        long latency = 0;
+        if (bitsPerSecond > 0) {
+            long now = System.nanoTime();
+            long start = Math.max(now, linkFree);
+            if (start - now > queueNanos) {
+                return -1;
             }
+            linkFree = start + length * 8L * 1_000_000_000L / bitsPerSecond;
+            latency = linkFree - now;
         }
-        else if (pManCalc < pMan){
-            manipulated++;
-            //System.out.println("\n\n\ngot manipulated package number "+manipulated );
-            byte[] payload = result.getData();
-            payload[12] ^= 1;
-            result.setData(payload);
+        latency += delayNanos;
+        if (jitterNanos > 0) {
+            latency += random.nextLong(jitterNanos + 1);
+        }
+        if (pReorder > 0 && random.nextDouble() < pReorder) {
+            reordered++;
+            latency += reorderNanos;
         }
-        return result;
+        return latency;
     }
 
+    private void schedule(ByteBuffer datagram, Sink sink, long latency) {
+        if (pending == null) {
+            pending = new DelayQueue<>();
+            Thread delivery = new Thread(this::deliverPending, "unreliable-channel");
+            delivery.setDaemon(true);
+            delivery.start();
+        }
+        Pending packet = free.poll();
+        if (packet == null) {
+            packet = new Pending();
+        }
+        if (packet.data.capacity() < datagram.remaining()) {
+            packet.data = ByteBuffer.allocate(Math.max(datagram.remaining(), FileSender.SIZE));
+        }
+        packet.data.clear();
+        int position = datagram.position();
+        packet.data.put(datagram).flip();
+        datagram.position(position);
+        packet.sink = sink;
+        packet.due = System.nanoTime() + latency;
+        packet.sequence = sequence++;
+        pending.add(packet);
+    }
+
+    /**
+     * Stops the thread delivering delayed datagrams, the ones still pending are dropped. Call it from the thread that
+     * transmits.
+     */
+    public void close() {
+        closed = true;
+        if (pending != null) {
+            // due at once, wakes the delivery thread up
+            pending.add(new Pending());
+        }
+    }
+
+    private void deliverPending() {
+        try {
+            while (true) {
+                Pending packet = pending.take();
+                if (closed) {
+                    return;
+                }
+                try {
+                    packet.sink.deliver(packet.data);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                packet.sink = null;
+                free.offer(packet);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Counters of everything that happened to the datagrams so far.
+     */
+    public String summary() {
+        return "Channel (seed " + seed + "): lost " + lost + ", duplicated " + duplicated + ", corrupted " + manipulated
+                + ", reordered " + reordered + ", dropped by queue " + overflowed;
+    }
+
+    private static final class Pending implements Delayed {
+        private ByteBuffer data = ByteBuffer.allocate(FileSender.SIZE);
+        private Sink sink;
+        private long due;
+        private long sequence;
 
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            Pending other = (Pending) o;
+            int byTime = Long.compare(due, other.due);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
 }
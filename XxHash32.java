@@ -0,0 +1,158 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * Streaming xxHash32 (seed 0) as a {@link Checksum}. It mixes 16 bytes per round with multiplications and rotations
+ * only, so its speed doesn't depend on the JIT having a CRC intrinsic for the CPU. Where it has one, CRC32C is several
+ * times faster. It detects random corruption as well as a CRC, but lacks the CRC's guarantee for bursts of up to
+ * 32 bits.
+ */
+public class XxHash32 implements Checksum {
+
+    private static final int PRIME1 = 0x9E3779B1;
+    private static final int PRIME2 = 0x85EBCA77;
+    private static final int PRIME3 = 0xC2B2AE3D;
+    private static final int PRIME4 = 0x27D4EB2F;
+    private static final int PRIME5 = 0x165667B1;
+    // little endian reads regardless of the byte order the buffer is set to
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle ARRAY_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private int v1;
+    private int v2;
+    private int v3;
+    private int v4;
+    private long total;
+    // bytes of an incomplete stripe, waiting for the next update
+    private final byte[] pending = new byte[16];
+    private int pendingSize;
+
+    public XxHash32() {
+        reset();
+    }
+
+    @Override
+    public void update(int b) {
+        pending[pendingSize++] = (byte) b;
+        total++;
+        if (pendingSize == 16) {
+            stripes(ByteBuffer.wrap(pending), 0, 16);
+            pendingSize = 0;
+        }
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        update(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Consumes the remaining bytes of the buffer without copying them, direct buffers included.
+     */
+    @Override
+    public void update(ByteBuffer buffer) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        total += limit - position;
+        if (pendingSize > 0) {
+            while (pendingSize < 16 && position < limit) {
+                pending[pendingSize++] = buffer.get(position++);
+            }
+            if (pendingSize < 16) {
+                buffer.position(limit);
+                return;
+            }
+            stripes(ByteBuffer.wrap(pending), 0, 16);
+            pendingSize = 0;
+        }
+        position = stripes(buffer, position, limit);
+        while (position < limit) {
+            pending[pendingSize++] = buffer.get(position++);
+        }
+        buffer.position(limit);
+    }
+
+    /**
+     * Mixes all complete stripes of 16 bytes between index and end into the accumulators.
+     *
+     * @return Index behind the last stripe.
+     */
+    private int stripes(ByteBuffer buffer, int index, int end) {
+        int a = v1;
+        int b = v2;
+        int c = v3;
+        int d = v4;
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for (; index <= end - 16; index += 16) {
+                a = round(a, (int) ARRAY_INT.get(array, offset + index));
+                b = round(b, (int) ARRAY_INT.get(array, offset + index + 4));
+                c = round(c, (int) ARRAY_INT.get(array, offset + index + 8));
+                d = round(d, (int) ARRAY_INT.get(array, offset + index + 12));
+            }
+        } else {
+            for (; index <= end - 16; index += 16) {
+                a = round(a, (int) INT.get(buffer, index));
+                b = round(b, (int) INT.get(buffer, index + 4));
+                c = round(c, (int) INT.get(buffer, index + 8));
+                d = round(d, (int) INT.get(buffer, index + 12));
+            }
+        }
+        v1 = a;
+        v2 = b;
+        v3 = c;
+        v4 = d;
+        return index;
+    }
+
+    private static int round(int accumulator, int input) {
+        return Integer.rotateLeft(accumulator + input * PRIME2, 13) * PRIME1;
+    }
+
+    @Override
+    public long getValue() {
+        int hash = total >= 16
+                ? Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7) + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18)
+                : v3 + PRIME5;
+        hash += (int) total;
+        int i = 0;
+        for (; i + 4 <= pendingSize; i += 4) {
+            int word = (pending[i] & 0xFF) | (pending[i + 1] & 0xFF) << 8 | (pending[i + 2] & 0xFF) << 16 | pending[i + 3] << 24;
+            hash = Integer.rotateLeft(hash + word * PRIME3, 17) * PRIME4;
+        }
+        for (; i < pendingSize; i++) {
+            hash = Integer.rotateLeft(hash + (pending[i] & 0xFF) * PRIME5, 11) * PRIME1;
+        }
+        hash ^= hash >>> 15;
+        hash *= PRIME2;
+        hash ^= hash >>> 13;
+        hash *= PRIME3;
+        hash ^= hash >>> 16;
+        return hash & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        v1 = PRIME1 + PRIME2;
+        v2 = PRIME2;
+        v3 = 0;
+        v4 = -PRIME1;
+        total = 0;
+        pendingSize = 0;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-packet work of the alternating bit protocol: building a datagram with checksum on the sender, checking it and
+ * extracting the payload on the receiver, and checking an ACK. Creating and checking packets moved from
+ * FileSender/FileReceiver into {@code PacketCodec}, so the receiver side is measured on the codec directly, with each
+ * of the checksums a session can negotiate. Sender and ACK use the CRC32 FileSender starts every session with.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    private static final MethodHandle CREATE_CHUNK = Lab.method("FileSender", "createChunkWithChecksum",
+            ByteBuffer.class, byte.class, byte.class, int.class, byte[].class, int.class, int.class);
+    private static final MethodHandle CHECK_ACK = Lab.method("FileSender", "checkACK", ByteBuffer.class, int.class);
+    private static final MethodHandle NEW_CODEC = Lab.constructor("PacketCodec", int.class, Lab.type("PacketChecksum"));
+    private static final MethodHandle WRAP = Lab.method("PacketCodec", "wrap", ByteBuffer.class);
+    private static final MethodHandle IS_CORRUPT = Lab.method("PacketCodec", "isCorrupt");
+    private static final MethodHandle PAYLOAD = Lab.method("PacketCodec", "payload");
+    private static final MethodHandle ENCODE = Lab.method("PacketCodec", "encode",
+            ByteBuffer.class, int.class, int.class, int.class, byte.class, int.class);
+    private static final MethodHandle ENCODE_ACK = Lab.method("PacketCodec", "encodeACK",
+            ByteBuffer.class, int.class, int.class, int.class, int.class);
+
+    private static final int SIZE = 1400;
+    private static final int HEADER_SIZE = 12;
+    private static final int ACK_SIZE = 9;
+
+    @Param({"64", "1388"})
+    public int payloadSize;
+
+    @Param({"CRC32", "CRC32C", "XXHASH32"})
+    public String checksum;
+
+    private byte[] file;
+    private ByteBuffer datagram;
+    private ByteBuffer received;
+    private ByteBuffer ack;
+    private Object codec;
+
+    @Setup
+    public void setUp() throws Throwable {
+        file = new byte[1 << 20];
+        ThreadLocalRandom.current().nextBytes(file);
+        datagram = ByteBuffer.allocate(SIZE);
+        received = ByteBuffer.allocate(SIZE);
+        ack = ByteBuffer.allocate(ACK_SIZE);
+        codec = NEW_CODEC.invoke(1, Lab.constant("PacketChecksum", checksum));
+
+        received.put(HEADER_SIZE, file, 0, payloadSize);
+        ENCODE.invoke(codec, received, 4242, 2121, 0, (byte) 0, payloadSize);
+        ENCODE_ACK.invoke(NEW_CODEC.invoke(1, Lab.constant("PacketChecksum", "CRC32")), ack, 2121, 4242, 0, 0);
+    }
+
+    @Benchmark
+    public int createChunkWithChecksum() throws Throwable {
+        return (int) CREATE_CHUNK.invoke(datagram, (byte) 0, (byte) 0, 0, file, 4096, payloadSize);
+    }
+
+    @Benchmark
+    public boolean isCorrupt() throws Throwable {
+        received.limit(HEADER_SIZE + payloadSize).position(0);
+        WRAP.invoke(codec, received);
+        return (boolean) IS_CORRUPT.invoke(codec);
+    }
+
+    @Benchmark
+    public void checkAndExtract(Blackhole blackhole) throws Throwable {
+        received.limit(HEADER_SIZE + payloadSize).position(0);
+        WRAP.invoke(codec, received);
+        if (!(boolean) IS_CORRUPT.invoke(codec)) {
+            ByteBuffer payload = (ByteBuffer) PAYLOAD.invoke(codec);
+            blackhole.consume(payload.get(payload.position()));
+        }
+    }
+
+    @Benchmark
+    public boolean checkACK() throws Throwable {
+        ack.limit(ACK_SIZE).position(0);
+        return (boolean) CHECK_ACK.invoke(ack, 0);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-chunk cost of {@code ChunkCompression}: compressing a chunk on the sender and decompressing it on the receiver,
+ * for log lines that shrink well and random bytes standing in for JPEG data that doesn't shrink at all. Random chunks
+ * are only compressed as a sample before the sender bypasses compression, so their compress time is what a sample
+ * costs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+    private static final MethodHandle CREATE = Lab.method("ChunkCompression", "create");
+    private static final MethodHandle COMPRESS = Lab.method("ChunkCompression$Compressor", "compress",
+            ByteBuffer.class, ByteBuffer.class);
+    private static final MethodHandle DECOMPRESS = Lab.method("ChunkCompression$Compressor", "decompress",
+            ByteBuffer.class, ByteBuffer.class);
+
+    @Param({"1388"})
+    public int chunkSize;
+
+    @Param({"DEFLATE", "LZ4"})
+    public String algorithm;
+
+    @Param({"log", "random"})
+    public String data;
+
+    private Object compressor;
+    private ByteBuffer chunk;
+    private ByteBuffer packed;
+    private ByteBuffer compressed;
+    private ByteBuffer unpacked;
+
+    @Setup
+    public void setUp() throws Throwable {
+        chunk = ByteBuffer.allocateDirect(chunkSize);
+        if (data.equals("log")) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int line = 0; chunk.hasRemaining(); line++) {
+                String text = String.format("2019-01-13 12:%02d:%02d INFO [worker-%d] request %d served in %d ms%n",
+                        line / 60 % 60, line % 60, random.nextInt(16), line, random.nextInt(900));
+                byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+                chunk.put(bytes, 0, Math.min(bytes.length, chunk.remaining()));
+            }
+            chunk.flip();
+        } else {
+            byte[] bytes = new byte[chunkSize];
+            ThreadLocalRandom.current().nextBytes(bytes);
+            chunk.put(bytes).flip();
+        }
+        compressor = CREATE.invoke(Lab.constant("ChunkCompression", algorithm));
+        packed = ByteBuffer.allocateDirect(chunkSize);
+        // room for the expansion of incompressible data, so there is always something to decompress
+        compressed = ByteBuffer.allocateDirect(2 * chunkSize);
+        int length = (int) COMPRESS.invoke(compressor, chunk, compressed);
+        compressed.limit(length);
+        unpacked = ByteBuffer.allocateDirect(chunkSize);
+    }
+
+    @Benchmark
+    public int compress() throws Throwable {
+        return (int) COMPRESS.invoke(compressor, chunk, packed);
+    }
+
+    @Benchmark
+    public boolean decompress() throws Throwable {
+        return (boolean) DECOMPRESS.invoke(compressor, compressed, unpacked);
+    }
+}
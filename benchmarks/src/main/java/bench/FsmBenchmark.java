@@ -0,0 +1,75 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of driving the sender and receiver state machines through one packet, i.e. what every datagram pays
+ * for the bookkeeping of the alternating bit protocol on top of the I/O.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FsmBenchmark {
+
+    private static final Class<?> SENDER_MSG = Lab.type("FSMSender$Msg");
+    private static final Class<?> RECEIVER_MSG = Lab.type("FSMReceiver$Msg");
+    private static final MethodHandle NEW_SENDER = Lab.constructor("FSMSender");
+    private static final MethodHandle NEW_RECEIVER = Lab.constructor("FSMReceiver");
+    private static final MethodHandle SENDER_PROCESS = Lab.method("FSMSender", "processMsg", SENDER_MSG);
+    private static final MethodHandle RECEIVER_PROCESS = Lab.method("FSMReceiver", "processMsg", RECEIVER_MSG);
+
+    private static final Object SEND = Lab.constant("FSMSender$Msg", "SEND");
+    private static final Object ALL_FINE = Lab.constant("FSMSender$Msg", "ALL_FINE");
+    private static final Object TIMEOUT = Lab.constant("FSMSender$Msg", "TIMEOUT");
+    private static final Object PACKET_FINE = Lab.constant("FSMReceiver$Msg", "ALL_FINE");
+
+    private Object sender;
+    private Object receiver;
+
+    @Setup
+    public void setUp() throws Throwable {
+        sender = NEW_SENDER.invoke();
+        receiver = NEW_RECEIVER.invoke();
+    }
+
+    /**
+     * One packet without loss: send, ACK received.
+     */
+    @Benchmark
+    public void senderRound() throws Throwable {
+        SENDER_PROCESS.invoke(sender, SEND);
+        SENDER_PROCESS.invoke(sender, ALL_FINE);
+    }
+
+    /**
+     * One packet that needed a retransmission: send, timeout, ACK received.
+     */
+    @Benchmark
+    public void senderRoundWithTimeout() throws Throwable {
+        SENDER_PROCESS.invoke(sender, SEND);
+        SENDER_PROCESS.invoke(sender, TIMEOUT);
+        SENDER_PROCESS.invoke(sender, ALL_FINE);
+    }
+
+    @Benchmark
+    public void receiverPacket() throws Throwable {
+        RECEIVER_PROCESS.invoke(receiver, PACKET_FINE);
+    }
+}
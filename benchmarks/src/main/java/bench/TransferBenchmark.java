@@ -0,0 +1,118 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end transfer of a random file over loopback, measured from the first packet sent until the sender has
+ * seen the last ACK. The receiver runs as {@code ReceiverServer} in the same JVM, its unreliable channel loses
+ * packets with the given probability and neither duplicates nor corrupts any. Mode "tcp" is the baseline: the framed
+ * TCP transfer of {@code FileSender.sendViaTCP}, the loss rate doesn't apply to it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+    private static final MethodHandle NEW_SERVER = Lab.constructor("ReceiverServer",
+            int.class, String.class, int.class, double.class, double.class, double.class);
+    private static final MethodHandle SERVE = Lab.method("ReceiverServer", "serve");
+    private static final MethodHandle CLOSE = Lab.method("ReceiverServer", "close");
+    private static final MethodHandle SEND_ABP = Lab.method("FileSender", "secureTransmissionViaUDP", String.class, String.class);
+    private static final MethodHandle SEND_SR = Lab.method("SelectiveRepeatSender", "transmit", String.class, String.class, int.class);
+    private static final MethodHandle SEND_TCP = Lab.method("FileSender", "sendViaTCP", String.class, String.class, int.class,
+            long.class, int.class);
+    private static final MethodHandle RECEIVE_TCP = Lab.method("FileReceiver", "startTCP", int.class);
+
+    private static final int PORT = 2121;
+    private static final int WINDOW = 32;
+    // a finished session lingers for a second, the next alternating bit transfer from port 4242 must not run into it
+    private static final long LINGER = 1500;
+
+    @Param({"65536", "1048576"})
+    public int fileSize;
+
+    @Param({"0.0", "0.01", "0.1"})
+    public double lossRate;
+
+    @Param({"abp", "sr", "tcp"})
+    public String mode;
+
+    private String fileName;
+    private Object server;
+    private Thread serverThread;
+    private Closeable tcpServer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        fileName = "bench-" + fileSize + ".bin";
+        Path src = Files.createDirectories(Paths.get("src"));
+        byte[] data = new byte[fileSize];
+        ThreadLocalRandom.current().nextBytes(data);
+        Files.write(src.resolve(fileName), data);
+
+        if (mode.equals("tcp")) {
+            tcpServer = (Closeable) RECEIVE_TCP.invoke(PORT);
+            return;
+        }
+        server = NEW_SERVER.invoke(PORT, mode, WINDOW, lossRate, 0.0, 0.0);
+        serverThread = new Thread(() -> Lab.invoke(SERVE, server), "receiver-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(100);
+    }
+
+    @TearDown(Level.Invocation)
+    public void awaitLinger() throws InterruptedException {
+        if (mode.equals("abp")) {
+            Thread.sleep(LINGER);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        if (tcpServer != null) {
+            tcpServer.close();
+        }
+        if (server != null) {
+            CLOSE.invoke(server);
+            serverThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        Files.deleteIfExists(Paths.get("src", fileName));
+        Files.deleteIfExists(Paths.get("src", "rec_udp_" + fileName));
+        Files.deleteIfExists(Paths.get("src", "rec_sr_" + fileName));
+        Files.deleteIfExists(Paths.get("src", "rec_tcp_" + fileName));
+    }
+
+    @Benchmark
+    public void transfer() throws Throwable {
+        if (mode.equals("abp")) {
+            SEND_ABP.invoke(fileName, "127.0.0.1");
+        } else if (mode.equals("tcp")) {
+            SEND_TCP.invoke(fileName, "127.0.0.1", PORT, 0L, 0);
+        } else {
+            SEND_SR.invoke(fileName, "127.0.0.1", WINDOW);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Networks 2018/2019
+ * Lab 7:
+ * - file transmission via UDP Alternating-Bit-Protocol compared to TCP
+ * - unreliable channel
+ * - finite state machine for FileSender and FileReceiver
+ *
+ * @author Erwin Kupris, kupris@hm.edu // Bahadir Süzer, suezer@hm.edu
+ * @version 2019-01-13
+ */
+
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of writing received payloads to disk. The receiver used to collect the file by concatenating arrays
+ * (addToMessage), it now streams every chunk into a {@code StreamingFileWriter} at its file position.
+ * The position wraps around after 64 MB so the benchmark doesn't fill the disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class WriterBenchmark {
+
+    private static final MethodHandle NEW_WRITER = Lab.constructor("StreamingFileWriter", String.class, String.class);
+    private static final MethodHandle WRITE = Lab.method("StreamingFileWriter", "write", ByteBuffer.class, long.class);
+    private static final MethodHandle ABORT = Lab.method("StreamingFileWriter", "abort");
+
+    private static final long WRAP = 64L << 20;
+
+    @Param({"1388"})
+    public int chunkSize;
+
+    private Object writer;
+    private ByteBuffer chunk;
+    private long position = 0;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Files.createDirectories(Paths.get("src"));
+        writer = NEW_WRITER.invoke("writer-benchmark.bin", "bench");
+        byte[] data = new byte[chunkSize];
+        ThreadLocalRandom.current().nextBytes(data);
+        chunk = ByteBuffer.wrap(data);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        ABORT.invoke(writer);
+    }
+
+    @Benchmark
+    public void write() throws Throwable {
+        chunk.clear();
+        WRITE.invoke(writer, chunk, position);
+        position += chunkSize;
+        if (position >= WRAP) {
+            position = 0;
+        }
+    }
+}